@@ -0,0 +1,98 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Backend for the non-blocking Aalto parser.
+ *
+ * The input is read in blocks and pushed to the parser's byte array feeder
+ * whenever it runs out of input. Aalto is an optional dependency, so its async
+ * API is called through reflection.
+ */
+public class AaltoAsyncBackend implements XmlBackend {
+
+    public static final String NAME = "aalto-async";
+
+    /**
+     * AsyncXMLStreamReader.EVENT_INCOMPLETE
+     */
+    private static final int EVENT_INCOMPLETE = 257;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Object inputFactory;
+
+    private final Method createAsyncForByteArray;
+    private final Method getInputFeeder;
+    private final Method feedInput;
+    private final Method endOfInput;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private final StreamReaderAttributes attributes = new StreamReaderAttributes();
+
+    /**
+     * @throws ReflectiveOperationException if Aalto is not on the classpath
+     */
+    public AaltoAsyncBackend() throws ReflectiveOperationException {
+        Class<?> factoryClass = Class.forName("com.fasterxml.aalto.stax.InputFactoryImpl");
+
+        inputFactory = factoryClass.getDeclaredConstructor().newInstance();
+        createAsyncForByteArray = factoryClass.getMethod("createAsyncForByteArray");
+        getInputFeeder = Class.forName("com.fasterxml.aalto.AsyncXMLStreamReader").getMethod("getInputFeeder");
+        feedInput = Class.forName("com.fasterxml.aalto.AsyncByteArrayFeeder").getMethod("feedInput", byte[].class, int.class, int.class);
+        endOfInput = Class.forName("com.fasterxml.aalto.AsyncInputFeeder").getMethod("endOfInput");
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean parse(InputStream input, AbstractFileParser parser) throws IOException, XMLStreamException {
+        XMLStreamReader reader = (XMLStreamReader) invoke(createAsyncForByteArray, inputFactory);
+        Object feeder = invoke(getInputFeeder, reader);
+
+        try {
+            while (true) {
+                int eventType = reader.next();
+
+                if (eventType == EVENT_INCOMPLETE) {
+                    int n = input.read(buffer);
+
+                    if (n < 0) {
+                        invoke(endOfInput, feeder);
+                    } else {
+                        invoke(feedInput, feeder, buffer, 0, n);
+                    }
+                } else if (!StaxBackend.dispatch(eventType, reader, attributes, parser)) {
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return true;
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) throws XMLStreamException {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof XMLStreamException) {
+                throw (XMLStreamException) e.getCause();
+            }
+            throw new XMLStreamException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new XMLStreamException(e);
+        }
+    }
+}
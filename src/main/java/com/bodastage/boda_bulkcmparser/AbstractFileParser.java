@@ -2,21 +2,24 @@ package com.bodastage.boda_bulkcmparser;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
-import java.util.Stack;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-import javax.xml.stream.XMLEventReader;
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.events.Characters;
-import javax.xml.stream.events.EndElement;
-import javax.xml.stream.events.StartElement;
-import javax.xml.stream.events.XMLEvent;
+
+import org.eclipse.jdt.annotation.Nullable;
 
 public abstract class AbstractFileParser {
 
@@ -29,32 +32,193 @@ public abstract class AbstractFileParser {
     /**
      * Tracks XML elements.
      */
-    protected Stack<String> xmlTagStack = new Stack<>();
+    protected final TagStack xmlTagStack = new TagStack();
 
     /**
      * Tracks how deep a Management Object is in the XML doc hierarchy.
      */
     protected int depth = 0;
 
+    /**
+     * Directory for temporary files.
+     */
+    protected String spoolDirectory = null;
+
+    /**
+     * Compression level of the event logs.
+     */
+    private int eventLogCompression = EventLog.NO_COMPRESSION;
+
+    private boolean eventLogEnabled = false;
+
+    /**
+     * Set while the events of the parsed files are recorded.
+     */
+    private boolean recordingEvents = false;
+
+    /**
+     * Recorded events per input file, shared by the parsers of a parallel parse.
+     */
+    private Map<String, EventLog> eventLogs = new ConcurrentHashMap<>();
+
+    /**
+     * Parser of the input files.
+     */
+    private XmlBackend xmlBackend = XmlBackends.create(XmlBackends.STAX);
+
+    /**
+     * Parser of the files the backend does not support.
+     */
+    @Nullable
+    private XmlBackend fallbackBackend = null;
+
+    /**
+     * Event log of the file being parsed.
+     */
+    @Nullable
+    private EventLog eventLog = null;
+
+    /**
+     * Set while a part of a split file is parsed.
+     */
+    private boolean parsingPart = false;
+
+    /**
+     * Set once the end of the part has been reached, the events after it are ignored.
+     */
+    private boolean partEnded = false;
+
+    /**
+     * Files and archive members parsed, all if null.
+     */
+    @Nullable
+    private Glob include = null;
+
+    /**
+     * Files, directories and archive members not parsed.
+     */
+    @Nullable
+    private Glob exclude = null;
+
+    /**
+     * Reads the inputs ahead of the backend, null unless read-ahead is on.
+     * Shared by the parsers of a parallel parse.
+     */
+    @Nullable
+    private ReadAhead readAhead = null;
+
     public String getFileName() {
     	return baseFileName;
     }
 
+    /**
+     * Directory for temporary files such as event logs. Defaults to the system temporary directory.
+     */
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    /**
+     * Record the XML events of the files while they are parsed, so that they
+     * can be replayed when the files are parsed again.
+     */
+    public void setEventLogEnabled(boolean eventLogEnabled) {
+        this.eventLogEnabled = eventLogEnabled;
+    }
+
+    /**
+     * Deflate compression level of the event logs, from 0 (no compression) to 9.
+     */
+    public void setEventLogCompression(int eventLogCompression) {
+        this.eventLogCompression = eventLogCompression;
+    }
+
+    /**
+     * The XML parser used to read the files, see {@link XmlBackends}.
+     */
+    public void setXmlBackend(XmlBackend xmlBackend) {
+        this.xmlBackend = xmlBackend;
+    }
+
+    public XmlBackend getXmlBackend() {
+        return xmlBackend;
+    }
+
+    /**
+     * Only parse the files of a directory and the members of archives which
+     * match the glob. Archives are opened whether they match or not.
+     *
+     * A glob without a '/' is matched against the name of the file,
+     * otherwise against its path relative to the directory or in the archive.
+     */
+    public void setIncludeGlob(@Nullable String glob) {
+        this.include = glob == null ? null : new Glob(glob);
+    }
+
+    /**
+     * Skip the files, directories and archive members which match the glob,
+     * see {@link #setIncludeGlob(String)}.
+     */
+    public void setExcludeGlob(@Nullable String glob) {
+        this.exclude = glob == null ? null : new Glob(glob);
+    }
+
+    /**
+     * Read the inputs, and decompress them, on threads of their own while
+     * they are parsed. Null turns read-ahead off.
+     */
+    public void setReadAhead(@Nullable ReadAhead readAhead) {
+        this.readAhead = readAhead;
+    }
+
+    @Nullable
+    public ReadAhead getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * Takes over the settings of another parser, to parse some of its files
+     * on another thread. The XML backend is created anew by name and the
+     * event logs and the read-ahead are shared.
+     */
+    protected void copySettings(AbstractFileParser parser) {
+        spoolDirectory = parser.spoolDirectory;
+        eventLogEnabled = parser.eventLogEnabled;
+        eventLogCompression = parser.eventLogCompression;
+        xmlBackend = XmlBackends.create(parser.xmlBackend.getName());
+        eventLogs = parser.eventLogs;
+        include = parser.include;
+        exclude = parser.exclude;
+        readAhead = parser.readAhead;
+    }
+
+    /**
+     * Starts or stops recording events of the files parsed.
+     *
+     * Files with a recorded event log are replayed from the log when parsed
+     * while not recording.
+     */
+    protected void setRecordingEvents(boolean recordingEvents) {
+        this.recordingEvents = recordingEvents && eventLogEnabled;
+    }
+
+    /**
+     * Deletes the recorded event logs.
+     */
+    protected void discardEventLogs() {
+        for (EventLog log : eventLogs.values()) {
+            log.close();
+        }
+        eventLogs.clear();
+    }
+
     /**
      * Get the number of occurrences of an XML tag in the xmlTagStack.
      *
      * This is used to handle cases where XML elements with the same name are nested.
      */
     protected int getXMLTagOccurences(String tagName) {
-        int tagOccurences = 0;
-
-        String regex = "^(" + tagName + "|" + tagName + "_\\d+)$";
-        
-        for (String tag : xmlTagStack) {
-            if (tag.matches(regex)) tagOccurences++;
-        }
-        
-        return tagOccurences;
+        return xmlTagStack.occurrences(tagName);
     }
 
     /**
@@ -71,56 +235,360 @@ public abstract class AbstractFileParser {
         
         if (Files.isDirectory(file)) {
             //get all the files from a directory
-            for (File f : new File(dataSource).listFiles()) {
-                try {
-                    parseFile(f.getAbsolutePath());
-                } catch (Exception e) {
-                    System.out.println(e.getMessage());
-                    System.out.println("Skipping file: " + getFileName() + "\n");
-                }
+            for (String f : listInputFiles(dataSource)) {
+                parseDirectoryFile(f);
             }
         } else if (Files.isRegularFile(file)) {
             parseFile(dataSource);
         }
     }
 
+    /**
+     * Parses a file of a directory, skipping it if it cannot be parsed.
+     */
+    protected void parseDirectoryFile(String f) {
+        try {
+            parseFile(f);
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            System.out.println("Skipping file: " + getFileName() + "\n");
+        }
+    }
+
+    /**
+     * Returns the files parsed for the data source, in the order they are parsed.
+     *
+     * The files of a directory are found in its subdirectories too.
+     */
+    protected List<String> listInputFiles(String dataSource) {
+        List<String> files = new ArrayList<>();
+        Path file = Paths.get(dataSource);
+
+        if (!Files.isReadable(file)) {
+            return files;
+        }
+
+        if (Files.isDirectory(file)) {
+            listDirectory(new File(dataSource), "", new HashSet<>(), files);
+        } else if (Files.isRegularFile(file)) {
+            files.add(dataSource);
+        }
+
+        return files;
+    }
+
+    /**
+     * Adds the files of the directory and its subdirectories which are parsed.
+     *
+     * @param path path of the directory relative to the data source, empty or ending with '/'
+     * @param visited directories listed, so that links to a parent directory are not followed
+     */
+    private void listDirectory(File directory, String path, Set<Path> visited, List<String> files) {
+        File[] children = directory.listFiles();
+
+        try {
+            if (children == null || !visited.add(directory.toPath().toRealPath())) {
+                return;
+            }
+        } catch (IOException e) {
+            return;
+        }
+
+        for (File f : children) {
+            String childPath = path + f.getName();
+
+            if (exclude != null && exclude.matches(childPath)) {
+                continue;
+            }
+
+            if (f.isDirectory()) {
+                listDirectory(f, childPath + "/", visited, files);
+            } else if (include == null || include.matches(childPath) || isArchive(f.getPath())) {
+                files.add(f.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Whether the archive member is parsed.
+     */
+    protected boolean isIncludedMember(String path) {
+        return (include == null || include.matches(path)) && (exclude == null || !exclude.matches(path));
+    }
+
+    private static boolean isArchive(String filename) {
+        try {
+            return InputArchive.isArchive(filename);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     protected void reset() {
     	xmlTagStack.clear();
         depth = 0;
     }
     
     protected void parseFile(String inputFilename) throws FileNotFoundException, XMLStreamException, UnsupportedEncodingException {
+    	if (isArchive(inputFilename)) {
+    	    parseArchive(inputFilename);
+    	    return;
+    	}
+
     	baseFileName = IOUtils.getFileBasename(inputFilename);
-    	
-        XMLEventReader eventReader = XMLInputFactory.newInstance().createXMLEventReader(new FileReader(inputFilename));
-        
-        while (eventReader.hasNext()) {
-            XMLEvent event = eventReader.nextEvent();
-            
-            switch (event.getEventType()) {
-                case XMLStreamConstants.START_ELEMENT:
-                    onStartElement(event.asStartElement());
-                    break;
-                case XMLStreamConstants.SPACE:
-                case XMLStreamConstants.CHARACTERS:
-                    onCharacters(event.asCharacters());
-                    break;
-                case XMLStreamConstants.END_ELEMENT:
-                    onEndElement(event.asEndElement());
-                    break;
+
+    	parseInput(inputFilename, () -> CompressedInput.open(inputFilename));
+    }
+
+    /**
+     * Parses the members of a zip or tar file as they are read from the
+     * archive. The rows get the path of the member in the archive as file
+     * name. Members which cannot be parsed are skipped.
+     */
+    private void parseArchive(String archiveFilename) throws XMLStreamException {
+    	try (InputArchive archive = InputArchive.open(archiveFilename)) {
+    	    for (String member = archive.next(); member != null; member = archive.next()) {
+    	        if (!isIncludedMember(member)) {
+    	            continue;
+    	        }
+
+    	        baseFileName = member;
+    	        try {
+    	            parseInput(archiveFilename + InputArchive.MEMBER_SEPARATOR + member, archive::openMember);
+    	        } catch (XMLStreamException e) {
+    	            System.out.println(e.getMessage());
+    	            System.out.println("Skipping file: " + getFileName() + "\n");
+    	        }
+    	    }
+    	} catch (IOException e) {
+    	    throw new XMLStreamException(e.getMessage(), e);
+    	}
+    }
+
+    /**
+     * Parses a part of a file split by {@link FileSplitter}. The rows get the
+     * name of the file.
+     */
+    protected void parsePart(FileSplitter.Part part) throws FileNotFoundException, XMLStreamException, UnsupportedEncodingException {
+    	baseFileName = IOUtils.getFileBasename(part.getFile());
+    	parsingPart = true;
+    	partEnded = false;
+
+    	try {
+    	    parseInput(part.toString(), part::open);
+    	} finally {
+    	    parsingPart = false;
+    	}
+    }
+
+    /**
+     * Parses an input, or replays its event log.
+     *
+     * @param inputName name the event log of the input is kept under
+     */
+    private void parseInput(String inputName, InputSource source) throws FileNotFoundException, XMLStreamException {
+    	if (!recordingEvents && eventLogs.containsKey(inputName)) {
+    	    replayFile(inputName);
+    	    return;
+    	}
+
+    	eventLog = recordingEvents ? createEventLog() : null;
+
+        try {
+            if (!parseWith(xmlBackend, source)) {
+                System.out.println("The " + xmlBackend.getName() + " XML backend does not support " + getFileName() + ", parsing it with StAX.");
+                parseWith(fallbackBackend(), source);
             }
+
+            if (eventLog != null) {
+                eventLog.finish();
+                eventLogs.put(inputName, eventLog);
+                eventLog = null;
+            }
+        } catch (IOException e) {
+            System.out.println("Warning: Event log not recorded. " + e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(eventLog);
+            eventLog = null;
         }
     }
-    
+
+    /**
+     * Parses the file with the backend.
+     *
+     * @return false if the backend does not support the file
+     */
+    private boolean parseWith(XmlBackend backend, InputSource source) throws FileNotFoundException, XMLStreamException {
+        try (InputStream input = readAhead != null ? readAhead.open(source.open()) : source.open()) {
+            return backend.parse(input, this);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new XMLStreamException(e.getMessage(), e);
+        }
+    }
+
+    private XmlBackend fallbackBackend() {
+        if (fallbackBackend == null) {
+            fallbackBackend = XmlBackends.create(XmlBackends.STAX);
+        }
+        return fallbackBackend;
+    }
+
+    /**
+     * Passes a start element to the handler and records it in the event log.
+     */
+    void startElement(String prefix, String localName, ElementAttributes elementAttributes) {
+        if (partEnded) {
+            return;
+        }
+
+        if (parsingPart && prefix.isEmpty() && FileSplitter.END_MARKER.equals(localName)) {
+            partEnded = true;																		//Only the end tags of the enclosing elements follow
+            return;
+        }
+
+        onStartElement(prefix, localName, elementAttributes);
+
+        if (eventLog != null) {
+            try {
+                eventLog.writeStartElement(prefix, localName, elementAttributes);
+            } catch (IOException e) {
+                dropEventLog(e);
+            }
+        }
+    }
+
+    void characters(char[] text, int start, int length) {
+        if (partEnded) {
+            return;
+        }
+
+        onCharacters(text, start, length);
+
+        if (eventLog != null) {
+            try {
+                eventLog.writeCharacters(text, start, length);
+            } catch (IOException e) {
+                dropEventLog(e);
+            }
+        }
+    }
+
+    void endElement(String prefix, String localName) {
+        if (partEnded) {
+            return;
+        }
+
+        onEndElement(prefix, localName);
+
+        if (eventLog != null) {
+            try {
+                eventLog.writeEndElement(prefix, localName);
+            } catch (IOException e) {
+                dropEventLog(e);
+            }
+        }
+    }
+
+    /**
+     * Stops recording the current file after a write error.
+     */
+    private void dropEventLog(IOException e) {
+        System.out.println("Warning: Event log not recorded. " + e.getMessage());
+        eventLog.close();
+        eventLog = null;
+    }
+
+    /**
+     * Returns the prefix of an element or attribute, or an empty string if it has none.
+     */
+    protected static String prefixOf(@Nullable String prefix) {
+        return prefix == null ? "" : prefix;
+    }
+
+    /**
+     * Whether the text consists of XML whitespace only.
+     */
+    protected static boolean isWhiteSpace(char[] text, int start, int length) {
+        if (length == 0) {
+            return false;
+        }
+
+        for (int i = start, end = start + length; i < end; i++) {
+            char c = text[i];
+            if (c != ' ' && c != '\n' && c != '\t' && c != '\r') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void replayFile(String inputFilename) throws XMLStreamException {
+        try {
+            eventLogs.get(inputFilename).replay(this);
+        } catch (IOException e) {
+            throw new XMLStreamException("Failed to replay event log of " + inputFilename, e);
+        }
+    }
+
+    @Nullable
+    private EventLog createEventLog() {
+        try {
+            return new EventLog(spoolDirectory == null ? null : new File(spoolDirectory), eventLogCompression);
+        } catch (IOException e) {
+            System.out.println("Warning: Event log not recorded. " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Opens an input, again for each backend it is parsed with.
+     */
+    private interface InputSource {
+
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Glob matched against a name, or against a path if it has a '/'.
+     */
+    private static final class Glob {
+
+        private final PathMatcher matcher;
+
+        private final boolean nameOnly;
+
+        Glob(String glob) {
+            this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            this.nameOnly = glob.indexOf('/') < 0;
+        }
+
+        /**
+         * @param path relative path with '/' separators
+         */
+        boolean matches(String path) {
+            String matched = nameOnly ? path.substring(path.lastIndexOf('/') + 1) : path;
+            return matcher.matches(Paths.get(matched));
+        }
+    }
+
     /**
      * Handle start element event.
+     *
+     * @param prefix element prefix or an empty string
+     * @param localName element local name
+     * @param attributes element attributes, only valid until the method returns
      */
-    protected abstract void onStartElement(StartElement startElement);
+    protected abstract void onStartElement(String prefix, String localName, ElementAttributes attributes);
     
     /**
      * Handle character events.
+     *
+     * The text buffer is only valid until the method returns.
      */
-    protected abstract void onCharacters(Characters characters);
+    protected abstract void onCharacters(char[] text, int start, int length);
     
-    protected abstract void onEndElement(EndElement endElement);
+    protected abstract void onEndElement(String prefix, String localName);
 }
@@ -0,0 +1,323 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Formats and writes rows on a pool of threads, so that the parsing thread
+ * does not wait for csv escaping, encoding and disk writes.
+ *
+ * Rows are copied into a bounded queue. A writer waits while the queue is full.
+ * The output threads take the rows in queue order, escape and encode them into
+ * a buffer of their own and append the bytes to the row's file. Every file has
+ * a lane which numbers its rows, and a row is only appended once the rows
+ * queued before it on the same file have been, so each file gets its rows in
+ * the order they were written.
+ *
+ * The first error of an output thread is thrown to the writing thread by the
+ * next call to {@link #submit}, {@link #flush()} or {@link #close()}.
+ */
+public class AsyncRowWriter implements Closeable {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+    /**
+     * Tells an output thread to stop.
+     */
+    private static final Row END = new Row(null, new String[0], 0, 0);
+
+    private final BlockingQueue<Row> queue;
+
+    private final Thread[] threads;
+
+    /**
+     * Lanes of the files.
+     */
+    private final ConcurrentMap<BulkOutputWriter.Handle, Lane> lanes = new ConcurrentHashMap<>();
+
+    /**
+     * Number of rows queued and not written yet.
+     */
+    private final AtomicLong pending = new AtomicLong();
+
+    private final Object idle = new Object();
+
+    private volatile @Nullable Throwable failure;
+
+    /**
+     * Shared by the threads queueing rows, taken alone by close() so that no
+     * row is queued behind the markers which stop the output threads.
+     */
+    private final ReadWriteLock closing = new ReentrantReadWriteLock();
+
+    /**
+     * Set by close() while it holds {@link #closing} alone.
+     */
+    private volatile boolean closed = false;
+
+    public AsyncRowWriter(int threads, int queueCapacity) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of output threads must be at least 1: " + threads);
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("The output queue capacity must be at least 1: " + queueCapacity);
+        }
+
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.threads = new Thread[threads];
+
+        for (int i = 0; i < threads; i++) {
+            this.threads[i] = new Thread(this::run, "boda-bulkcmparser-output-" + i);
+            this.threads[i].setDaemon(true);
+            this.threads[i].start();
+        }
+    }
+
+    public int getThreads() {
+        return threads.length;
+    }
+
+    /**
+     * Queues a row of the file, waiting while the queue is full. Only rows
+     * of the same file are queued one at a time.
+     *
+     * @see BulkOutputWriter.Handle#writeRow(CharSequence[], int)
+     */
+    public void submit(BulkOutputWriter.Handle handle, @Nullable CharSequence[] values, int verbatim) {
+        checkFailure();
+
+        String[] copy = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            CharSequence value = values[i];
+            copy[i] = value == null ? null : value.toString();											//The values are reused by the caller
+        }
+
+        Lane lane = lanes.computeIfAbsent(handle, Lane::new);
+
+        closing.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Output is closed");
+            }
+
+            pending.incrementAndGet();
+
+            synchronized (lane.queueLock) {																//The rows of a lane enter the queue in the order of their numbers
+                try {
+                    queue.put(new Row(lane, copy, verbatim, lane.queued));
+                    lane.queued++;
+                } catch (InterruptedException e) {
+                    done();
+                    Thread.currentThread().interrupt();
+                    throw new UncheckedIOException(new InterruptedIOException("Interrupted while queueing a row"));
+                }
+            }
+        } finally {
+            closing.readLock().unlock();
+        }
+    }
+
+    /**
+     * Waits until all queued rows have been handed to their files.
+     */
+    public void flush() throws IOException {
+        synchronized (idle) {
+            while (pending.get() > 0) {
+                try {
+                    idle.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while flushing the output");
+                }
+            }
+        }
+
+        checkFailure();
+    }
+
+    /**
+     * Writes the queued rows and stops the output threads.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closing.writeLock().lock();																		//Waits for the rows being queued, the output threads keep taking them
+        try {
+            closed = true;
+        } finally {
+            closing.writeLock().unlock();
+        }
+
+        try {
+            for (int i = 0; i < threads.length; i++) {
+                queue.put(END);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing the output");
+        }
+
+        checkFailure();
+    }
+
+    private void run() {
+        CSVChannelWriter encoded = new CSVChannelWriter(1024, Charset.defaultCharset());
+
+        for (;;) {
+            Row row;
+            try {
+                row = queue.take();
+            } catch (InterruptedException e) {
+                fail(e);																				//Keep draining the queue so that close() does not hang
+                continue;
+            }
+
+            Lane lane = row.lane;
+            if (lane == null) {
+                return;
+            }
+
+            boolean formatted = false;
+            try {
+                encoded.clear();
+                encoded.writeRow(row.values, row.verbatim);
+                encoded.newLine();
+                formatted = true;
+            } catch (Throwable e) {
+                fail(e);
+            }
+
+            lane.awaitTurn(row.number);																	//A failed row still takes its turn, or the rows after it would wait forever
+            try {
+                if (formatted) {
+                    lane.handle.write(encoded.array(), 0, encoded.size());
+                }
+            } catch (Throwable e) {
+                fail(e);
+            } finally {
+                lane.done();
+                done();
+            }
+        }
+    }
+
+    /**
+     * Counts a row as written.
+     */
+    private void done() {
+        if (pending.decrementAndGet() == 0) {
+            synchronized (idle) {
+                idle.notifyAll();
+            }
+        }
+    }
+
+    private void fail(Throwable e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    private void checkFailure() {
+        Throwable e = failure;
+
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e instanceof IOException) {
+            throw new UncheckedIOException((IOException) e);
+        } else if (e != null) {
+            throw new IllegalStateException("Writing a row failed", e);
+        }
+    }
+
+    /**
+     * Queued rows of a file.
+     */
+    private static final class Lane {
+
+        final BulkOutputWriter.Handle handle;
+
+        /**
+         * Held while a row of the lane is numbered and queued.
+         */
+        final Object queueLock = new Object();
+
+        /**
+         * Number of rows queued, guarded by {@link #queueLock}.
+         */
+        long queued = 0;
+
+        /**
+         * Number of rows written.
+         */
+        private long written = 0;
+
+        Lane(BulkOutputWriter.Handle handle) {
+            this.handle = handle;
+        }
+
+        /**
+         * Waits until the rows queued before the row have been written.
+         * The row before was taken from the queue earlier, so it is being
+         * written by another thread.
+         */
+        synchronized void awaitTurn(long number) {
+            boolean interrupted = false;
+
+            while (written != number) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized void done() {
+            written++;
+            notifyAll();
+        }
+    }
+
+    private static final class Row {
+
+        final @Nullable Lane lane;
+
+        final @Nullable String[] values;
+
+        final int verbatim;
+
+        final long number;
+
+        Row(@Nullable Lane lane, @Nullable String[] values, int verbatim, long number) {
+            this.lane = lane;
+            this.values = values;
+            this.verbatim = verbatim;
+            this.number = number;
+        }
+    }
+}
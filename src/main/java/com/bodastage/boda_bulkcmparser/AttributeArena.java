@@ -0,0 +1,72 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.util.Arrays;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * The 3GPP attributes of the open MOs, by depth.
+ *
+ * Each depth has a pooled {@link AttributeSlot} which is reused by the MOs
+ * opened at that depth, so no maps are allocated per element.
+ */
+public class AttributeArena {
+
+    private AttributeSlot[] slots = new AttributeSlot[16];
+
+    private boolean[] active = new boolean[16];
+
+    private int activeCount = 0;
+
+    /**
+     * Returns the slot of the depth, opening it if needed.
+     */
+    public AttributeSlot grow(int depth) {
+        if (depth >= slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(depth + 1, slots.length * 2));
+            active = Arrays.copyOf(active, slots.length);
+        }
+
+        if (slots[depth] == null) {
+            slots[depth] = new AttributeSlot();
+        }
+
+        if (!active[depth]) {
+            active[depth] = true;
+            activeCount++;
+            slots[depth].clear();
+        }
+
+        return slots[depth];
+    }
+
+    /**
+     * Returns the slot of the depth, or null if it is not open.
+     */
+    @Nullable
+    public AttributeSlot get(int depth) {
+        return depth >= 0 && depth < slots.length && active[depth] ? slots[depth] : null;
+    }
+
+    /**
+     * Closes the slot of the depth.
+     */
+    public void remove(int depth) {
+        if (depth >= 0 && depth < slots.length && active[depth]) {
+            active[depth] = false;
+            activeCount--;
+        }
+    }
+
+    /**
+     * Whether no slot is open.
+     */
+    public boolean isEmpty() {
+        return activeCount == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(active, false);
+        activeCount = 0;
+    }
+}
@@ -0,0 +1,89 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.util.Arrays;
+
+/**
+ * Reusable array backed list of attributes.
+ */
+public class AttributeList implements ElementAttributes {
+
+    /**
+     * Initial capacity of the HashMap the JDK StartElementEvent keeps the attributes in.
+     */
+    private static final int EVENT_MAP_CAPACITY = 16;
+
+    private String[] prefixes = new String[8];
+    private String[] localNames = new String[8];
+    private String[] values = new String[8];
+    private int count = 0;
+
+    public void clear() {
+        count = 0;
+    }
+
+    public void add(String prefix, String localName, String value) {
+        if (count == prefixes.length) {
+            prefixes = Arrays.copyOf(prefixes, count * 2);
+            localNames = Arrays.copyOf(localNames, count * 2);
+            values = Arrays.copyOf(values, count * 2);
+        }
+
+        prefixes[count] = prefix;
+        localNames[count] = localName;
+        values[count] = value;
+        count++;
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return count;
+    }
+
+    @Override
+    public String getAttributePrefix(int index) {
+        return prefixes[index];
+    }
+
+    @Override
+    public String getAttributeLocalName(int index) {
+        return localNames[index];
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * Computes the order in which XMLEventReader returned the attributes.
+     *
+     * The JDK StartElementEvent keeps the attributes in a HashMap keyed by
+     * QName, so the parent ID columns follow the HashMap iteration order
+     * rather than the document order. The order is kept so that the columns
+     * do not move.
+     *
+     * @param hashes QName hash codes, namespace URI hash ^ local name hash
+     * @param order receives the attribute indices in iteration order
+     */
+    static void eventReaderOrder(int[] hashes, int count, int[] order) {
+        int capacity = EVENT_MAP_CAPACITY;
+        while (count > capacity * 3 / 4) {
+            capacity *= 2;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int bucket = bucket(hashes[i], capacity);
+            int j = i;
+
+            while (j > 0 && bucket(hashes[order[j - 1]], capacity) > bucket) {      //Stable insertion sort by bucket
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+        }
+    }
+
+    private static int bucket(int hash, int capacity) {
+        return (hash ^ (hash >>> 16)) & (capacity - 1);
+    }
+}
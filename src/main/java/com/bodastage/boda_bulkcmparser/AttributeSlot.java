@@ -0,0 +1,129 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reusable, insertion ordered parameter values of an MO.
+ *
+ * Behaves like a LinkedHashMap from parameter name to value, except that the
+ * values are pooled builders: multi-valued parameters are appended in place
+ * and clearing the slot keeps the builders for the next MO.
+ */
+public class AttributeSlot implements RowValues {
+
+    /**
+     * Multi-valued parameter separator.
+     */
+    private static final char VALUE_SEPARATOR = ';';
+
+    private String[] names = new String[16];
+
+    private StringBuilder[] values = new StringBuilder[16];
+
+    private boolean[] hasValue = new boolean[16];
+
+    private int size = 0;
+
+    private final Map<String, Integer> indices = new HashMap<>();
+
+    public boolean contains(String name) {
+        return indices.containsKey(name);
+    }
+
+    /**
+     * Adds the parameter without a value if it is not in the slot yet.
+     *
+     * @return false if the parameter was already in the slot
+     */
+    public boolean putIfAbsent(String name) {
+        if (indices.containsKey(name)) {
+            return false;
+        }
+
+        add(name);
+        return true;
+    }
+
+    /**
+     * Appends a value to the parameter, separated from its previous values.
+     * The parameter is added if it is not in the slot yet.
+     */
+    public void append(String name, CharSequence value) {
+        Integer index = indices.get(name);
+        int i = index == null ? add(name) : index;
+
+        StringBuilder sb = values[i];
+        if (sb.length() > 0) {
+            sb.append(VALUE_SEPARATOR);
+        }
+        sb.append(value);
+        hasValue[i] = true;
+    }
+
+    public void remove(String name) {
+        Integer index = indices.remove(name);
+
+        if (index == null) {
+            return;
+        }
+
+        StringBuilder removed = values[index];
+
+        for (int i = index + 1; i < size; i++) {
+            names[i - 1] = names[i];
+            values[i - 1] = values[i];
+            hasValue[i - 1] = hasValue[i];
+            indices.put(names[i - 1], i - 1);
+        }
+
+        size--;
+        names[size] = null;
+        values[size] = removed;                                                                 //Keep the builder for reuse
+    }
+
+    public void clear() {
+        Arrays.fill(names, 0, size, null);
+        size = 0;
+        indices.clear();
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String getName(int index) {
+        return names[index];
+    }
+
+    @Override
+    public CharSequence getValue(int index) {
+        return hasValue[index] ? values[index] : null;
+    }
+
+    private int add(String name) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+            hasValue = Arrays.copyOf(hasValue, size * 2);
+        }
+
+        if (values[size] == null) {
+            values[size] = new StringBuilder();
+        }
+
+        names[size] = name;
+        values[size].setLength(0);
+        hasValue[size] = false;
+        indices.put(name, size);
+
+        return size++;
+    }
+}
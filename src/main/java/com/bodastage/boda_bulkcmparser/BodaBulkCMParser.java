@@ -9,31 +9,45 @@ package com.bodastage.boda_bulkcmparser;
 
 import java.io.BufferedReader;
 import java.io.Closeable;
+import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.events.Attribute;
-import javax.xml.stream.events.Characters;
-import javax.xml.stream.events.EndElement;
-import javax.xml.stream.events.StartElement;
 
 import org.eclipse.jdt.annotation.Nullable;
 
 public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
 
     /**
-     * Multi-valued parameter separator.
+     * For attributes with children, define parameter-child separator
      */
-    private static final String VALUE_SEPARATOR = ";";
+    private static final String CHILD_ATTRIBUTE_SEPARATOR = "_";
 
     /**
-     * For attributes with children, define parameter-child separator
+     * Number of bytes at the end of a file searched for the fileFooter.
      */
-    private static final String CHILD_ATTRIBUTE_SEPARATOR = "_";
+    private static final int FOOTER_SCAN_SIZE = 8192;
+
+    private static final Pattern FOOTER_DATETIME = Pattern.compile("<(\\w+:)?fileFooter\\b[^>]*\\bdateTime\\s*=\\s*[\"']([^\"']*)[\"']");
     
 
     /**
@@ -41,7 +55,7 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
      *
      * This tracks everything within <xn:attributes>...</xn:attributes>.
      */
-    private final GrowingHashMap<Integer, Map<String, String>> threeGPPAttributes = new GrowingHashMap<>(LinkedHashMap::new);
+    private final AttributeArena threeGPPAttributes = new AttributeArena();
 
     /**
      * Maps of vsDataContainer instances to vendor specific data types.
@@ -51,7 +65,7 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
     /**
      * vsDataTypes stack.
      */
-    private final Map<String, String> vsDataTypes = new LinkedHashMap<>();
+    private final AttributeSlot vsDataTypes = new AttributeSlot();
     /**
      * Real stack to push and pop vsDataType attributes.
      *
@@ -75,9 +89,10 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
     private final Map<String, String> attrParentChildMap = new LinkedHashMap<>();
 
     /**
-     * Tracks XML attributes per Management Objects.
+     * XML attributes of the MOs on the xmlTagStack, the parent IDs of the rows.
      */
-    private final GrowingHashMap<Integer, Map<String, String>> moAttributes = new GrowingHashMap<>(LinkedHashMap::new);
+    private final ParentIdContext parentIds = new ParentIdContext();
+
     /**
      * Tracks Managed Object attributes to write to file. This is dictated by
      * the first instance of the MO found.
@@ -85,15 +100,45 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
      * TODO: Handle this better.
      */
 
-    private final GrowingHashMap<String, DistinctStack<String>> moColumns = new GrowingHashMap<>(DistinctStack::new);
+    private final SchemaCatalog schema;
+
+    private final GrowingHashMap<String, ColumnSet> moColumns;
     /**
      * Tracks the IDs of the parent elements
      */
-    private final GrowingHashMap<String, DistinctStack<String>> moColumnsParentIds = new GrowingHashMap<>(DistinctStack::new);
+    private final GrowingHashMap<String, ColumnSet> moColumnsParentIds;
     /**
      * A map of 3GPP attributes to the 3GPP MOs
      */
-    private final GrowingHashMap<String, DistinctStack<String>> moThreeGPPAttributes = new GrowingHashMap<>(DistinctStack::new);
+    private final GrowingHashMap<String, ColumnSet> moThreeGPPAttributes;
+
+    /**
+     * Row layouts of the 3GPP MOs, compiled from the columns and rebuilt when they change.
+     */
+    private final Map<String, RowLayout> threeGPPLayouts = new HashMap<>();
+
+    /**
+     * Row layouts of the vendor specific MOs.
+     */
+    private final Map<String, RowLayout> vendorLayouts = new HashMap<>();
+
+    /**
+     * Set when the columns come from a parameter file or a schema catalog.
+     *
+     * The parameter extraction pass is skipped and columns missing from the
+     * catalog are collected while the values are extracted.
+     */
+    private boolean schemaPreloaded = false;
+
+    /**
+     * MOs which gained columns after their first rows were written.
+     */
+    private final Set<String> grownMOs = new HashSet<>();
+
+    /**
+     * Element names seen so far and their kinds.
+     */
+    private final TagTable tags = new TagTable();
 
     /**
      * Marks start of processing per MO attributes.
@@ -112,8 +157,22 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
     /**
      * Tag data.
      */
-    private String tagData = "";
+    private StringBuilder tagData = new StringBuilder();
+
+    /**
+     * Text read since the last tag.
+     */
+    private StringBuilder text = new StringBuilder();
+
+    /**
+     * Names of parameters with children, by parent and child name.
+     */
+    private final Map<String, Map<String, String>> childParameterNames = new HashMap<>();
     private String dateTime = "";
+    /**
+     * Set when a fileFooter dateTime was found in the parameter extraction stage.
+     */
+    private boolean footerFound = false;
     /**
      * parameter selection file
      */
@@ -126,10 +185,83 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
 
     private ParserStates currentState = ParserStates.EXTRACTING_PARAMETERS;
 
+    /**
+     * Collect parameters and values in one pass over the input.
+     */
+    private boolean singlePass = false;
+
+    /**
+     * Holds the rows of a single-pass parse until the headers are known.
+     */
+    @Nullable
+    private RowSpool rowSpool = null;
+
+    /**
+     * Number of files of a directory parsed at the same time.
+     */
+    private int threads = 1;
+
+    /**
+     * Size of the parts larger files are split into when parsing on several threads, 0 to not split files.
+     */
+    private long splitSize = 0;
+
 
     public BodaBulkCMParser(BulkOutputWriter output) {
+    	this(output, new SchemaCatalog());
+    }
+
+    /**
+     * Creates a parser which collects the columns into the given catalog.
+     */
+    private BodaBulkCMParser(BulkOutputWriter output, SchemaCatalog schema) {
     	this.output = output;
+    	this.schema = schema;
+    	this.moColumns = schema.getMoColumns();
+    	this.moColumnsParentIds = schema.getMoColumnsParentIds();
+    	this.moThreeGPPAttributes = schema.getMoThreeGPPAttributes();
+    }
+
+    /**
+     * Parse the input once instead of twice.
+     *
+     * Rows are spooled to a temporary file while the parameters are collected
+     * and written out when the input has been fully read.
+     */
+    public void setSinglePass(boolean singlePass) {
+        this.singlePass = singlePass;
     }
+
+    /**
+     * Parse the files of a directory, and the parts of split files, on a
+     * pool of threads.
+     *
+     * Each file is parsed by a parser of its own. The columns the parsers
+     * collect are merged in file order before the values are extracted, and
+     * the rows of each file are written to fragment files which are appended
+     * to the csv files in file order, so the output is the same as when the
+     * files are parsed one after the other. The XML backend is created by
+     * name for each parser.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of parser threads must be at least 1: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Split files larger than the size into parts which are parsed on the
+     * threads like separate files, see {@link FileSplitter}. The parts start
+     * at MeContext or ManagedElement elements. Only used with more than one
+     * thread.
+     *
+     * @param splitSize size of the parts in bytes, 0 to parse files whole
+     */
+    public void setSplitSize(long splitSize) {
+        this.splitSize = splitSize;
+    }
+
     
     /**
      * Extracts parameter list from the parameter file
@@ -137,28 +269,50 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
     public void loadParametersForExtraction(String filename) throws FileNotFoundException, IOException {
     	parameterFile = filename;
     	
-        try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8))) {
             String line;
             while ((line = br.readLine()) != null) {
                String[] moAndParameters =  line.split(":");
                
-               DistinctStack<String> parameterStack = new DistinctStack<>(moAndParameters[1].split(","));
+               ColumnSet parameterStack = new ColumnSet(moAndParameters[1].split(","));
                
                String mo = moAndParameters[0];
 
                if (mo.startsWith("vsData")) {
                     moColumns.put(mo, parameterStack);
-                    moColumnsParentIds.put(mo, new DistinctStack<>());
+                    moColumnsParentIds.put(mo, new ColumnSet());
                } else {
                     moThreeGPPAttributes.put(mo, parameterStack);
                }
             }
 
             //Move to the parameter value extraction stage
-            //parserState = ParserStates.EXTRACTING_VALUES;
+            currentState = ParserStates.EXTRACTING_VALUES;
+            schemaPreloaded = true;
         }
     }
 
+    /**
+     * Loads the columns saved by {@link #saveSchemaCatalog(String)} on a previous run.
+     *
+     * Parsing then starts at the value extraction stage. The catalog is not combined with a parameter file.
+     */
+    public void loadSchemaCatalog(String filename) throws IOException {
+    	schema.load(filename);
+
+    	if (!schema.isEmpty()) {
+    	    currentState = ParserStates.EXTRACTING_VALUES;
+    	    schemaPreloaded = true;
+    	}
+    }
+
+    /**
+     * Saves the columns collected so far so that later runs can skip the parameter extraction stage.
+     */
+    public void saveSchemaCatalog(String filename) throws IOException {
+    	schema.save(filename);
+    }
+
     @Override
     protected void parseFile(String inputFilename) throws FileNotFoundException, XMLStreamException, UnsupportedEncodingException {
     	System.out.println("Boda BulkCMParser executed on file " + inputFilename);
@@ -169,22 +323,489 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
         System.out.println("Stage [" + currentState + "]: Completed.");
     }
 
+    @Override
+    protected void parsePart(FileSplitter.Part part) throws FileNotFoundException, XMLStreamException, UnsupportedEncodingException {
+    	System.out.println("Boda BulkCMParser executed on part " + (part.getIndex() + 1) + " of file " + part.getFile());
+    	System.out.println("Stage [" + currentState + "]: Running...");
+
+        super.parsePart(part);
+
+        System.out.println("Stage [" + currentState + "]: Completed.");
+    }
+
     /**
      * Parser entry point
      */
     @Override
     public void parse(String dataSource) throws XMLStreamException, FileNotFoundException, UnsupportedEncodingException {
+        if (threads > 1 && currentState != ParserStates.EXTRACTING_DONE) {
+            List<String> files = listInputFiles(dataSource);
+
+            if (files.size() > 1 || (files.size() == 1 && splitSize > 0 && new File(files.get(0)).length() > splitSize)) {
+                parseInParallel(files);
+                return;
+            }
+        }
+
+        if (singlePass && currentState != ParserStates.EXTRACTING_DONE) {
+            parseSinglePass(dataSource);
+            currentState = ParserStates.EXTRACTING_DONE;
+        }
+
         if (currentState == ParserStates.EXTRACTING_PARAMETERS) {
-            super.parse(dataSource);																					//Extract parameters
+            setRecordingEvents(true);																					//Record the events so the value extraction stage does not parse the XML again
+            try {
+                super.parse(dataSource);																				//Extract parameters
+            } finally {
+                setRecordingEvents(false);
+            }
             currentState = ParserStates.EXTRACTING_VALUES;
+        } else if (currentState == ParserStates.EXTRACTING_VALUES && schemaPreloaded) {
+            for (String f : listInputFiles(dataSource)) {																//The parameter extraction stage is skipped, get the dateTime from the file footers
+                String footerDateTime = readFooterDateTime(f);
+                if (footerDateTime != null) dateTime = footerDateTime;
+            }
         }
 
         if (currentState == ParserStates.EXTRACTING_VALUES) {
-        	super.parse(dataSource);																					//Extracting values
+            try {
+                super.parse(dataSource);																				//Extracting values
+            } finally {
+                discardEventLogs();
+            }
             currentState = ParserStates.EXTRACTING_DONE;
         }
     }
     
+    /**
+     * Collects the parameters and spools the rows in one pass, then writes
+     * the spooled rows with the headers of the complete parameter lists.
+     *
+     * The fileFooter dateTime is only known at the end of the file so it is
+     * filled in when the rows are written.
+     */
+    private void parseSinglePass(String dataSource) throws XMLStreamException, FileNotFoundException, UnsupportedEncodingException {
+        currentState = ParserStates.EXTRACTING_PARAMETERS;
+
+        try (RowSpool spool = new RowSpool(spoolDirectory == null ? null : new File(spoolDirectory))) {
+            rowSpool = spool;
+            super.parse(dataSource);
+            rowSpool = null;
+
+            System.out.println("Writing " + spool.getRowCount() + " spooled rows...");
+
+            writeSpooledRows(spool);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            rowSpool = null;
+        }
+    }
+
+    private void writeSpooledRows(RowSpool spool) throws IOException {
+        ParentIds.Mapped spooledParentIds = new ParentIds.Mapped();
+        RowValues.Mapped spooledValues = new RowValues.Mapped();
+
+        spool.replay((kind, mo, fileName, parentIdValues, values) -> {
+            if (kind == RowSpool.THREEGPP_ROW) {
+                write3GPPRow(mo, fileName, spooledParentIds.reset(parentIdValues), spooledValues.reset(values));
+            } else {
+                writeVendorRow(mo, fileName, spooledParentIds.reset(parentIdValues), spooledValues.reset(values));
+            }
+        });
+    }
+
+    /**
+     * Parses the files with a parser per file, or per part of the files
+     * larger than the split size, on a pool of threads.
+     *
+     * The parameter extraction stage runs on all parts first and the columns
+     * are merged in file order. The parsers of the value extraction stage
+     * then write the rows of each part to fragment files, which are appended
+     * to the output in file order as the parts are done.
+     *
+     * Columns missing from a preloaded schema are found by each parser on its
+     * own, so when they grow the headers may differ from a sequential parse.
+     */
+    private void parseInParallel(List<String> files) {
+        ExecutorService executor = newParserPool(threads);
+        File fragmentDirectory = null;
+        List<FileSplitter.Part> parts = new ArrayList<>();
+        List<Future<BodaBulkCMParser>> extracted = new ArrayList<>();
+        List<Future<BodaBulkCMParser>> written = new ArrayList<>();
+
+        try {
+            fragmentDirectory = Files.createTempDirectory(spoolDirectory == null ? Paths.get(System.getProperty("java.io.tmpdir")) : Paths.get(spoolDirectory),
+                    "boda-bulkcmparser-").toFile();
+
+            boolean extracting = singlePass || currentState == ParserStates.EXTRACTING_PARAMETERS;
+
+            for (String f : files) {
+                FileSplitter.split(f, splitSize, part -> {													//The parts found are parsed while the rest of the file is scanned
+                    parts.add(part);
+
+                    if (extracting) {
+                        extracted.add(executor.submit(() -> extractParameters(part)));
+                    }
+                });
+            }
+
+            if (extracting) {
+                for (Future<BodaBulkCMParser> future : extracted) {										//Merge in file order, as a sequential parse collects the columns
+                    BodaBulkCMParser worker = future.get();
+
+                    schema.merge(worker.schema);
+                    if (worker.footerFound) {
+                        dateTime = worker.dateTime;
+                    }
+                }
+            } else if (schemaPreloaded) {
+                for (String f : files) {
+                    String footerDateTime = readFooterDateTime(f);
+                    if (footerDateTime != null) dateTime = footerDateTime;
+                }
+            }
+
+            if (singlePass) {
+                long rows = 0;
+                for (Future<BodaBulkCMParser> future : extracted) {
+                    rows += future.get().rowSpool.getRowCount();
+                }
+                System.out.println("Writing " + rows + " spooled rows...");
+            }
+
+            for (int i = 0; i < parts.size(); i++) {
+                FileSplitter.Part part = parts.get(i);
+                @Nullable Future<BodaBulkCMParser> spooled = singlePass ? extracted.get(i) : null;
+                File fragments = new File(fragmentDirectory, String.valueOf(i));
+
+                written.add(executor.submit(() -> {
+                    if (!fragments.mkdir()) {
+                        throw new IOException("Cannot create " + fragments);
+                    }
+
+                    BodaBulkCMParser worker = newWorker(output.fragments(fragments), schemaPreloaded ? schema.copy() : schema,	//Without new columns to collect the merged columns are only read
+                            ParserStates.EXTRACTING_VALUES);
+                    worker.dateTime = dateTime;
+
+                    if (spooled != null) {
+                        worker.writeSpooledRows(spooled.get().rowSpool);
+                    } else {
+                        worker.parsePartOrSkip(part);
+                    }
+                    return worker;
+                }));
+            }
+
+            for (Future<BodaBulkCMParser> future : written) {
+                BodaBulkCMParser worker = future.get();
+
+                worker.output.appendTo(output);
+                if (schemaPreloaded) {
+                    schema.merge(worker.schema);																//Keep the columns found for saving the catalog
+                }
+            }
+
+            currentState = ParserStates.EXTRACTING_DONE;
+        } catch (ExecutionException e) {
+            throw rethrow(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while parsing"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            executor.shutdownNow();
+            closeSpools(extracted);
+            discardEventLogs();
+            if (fragmentDirectory != null) {
+                IOUtils.deleteRecursively(fragmentDirectory);
+            }
+        }
+    }
+
+    /**
+     * Parses the files of the data source which no other worker has claimed
+     * into shards of the work directory, on as many threads as set with
+     * {@link #setThreads(int)}.
+     *
+     * Each file is parsed in a single pass by a parser of its own, which
+     * keeps the rows in the shard's spool and saves the columns it found to
+     * the shard's catalog. Nothing is written to the output, the rows are
+     * written by {@link #mergeShards(String, ShardDirectory)} once all files
+     * have been parsed. Files are parsed whole, the split size is not used.
+     */
+    public void parseShards(String dataSource, ShardDirectory shards) {
+        List<String> files = listInputFiles(dataSource);
+        ExecutorService executor = newParserPool(threads);
+        List<Future<Integer>> workers = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < threads; i++) {
+                workers.add(executor.submit(() -> parseClaimedFiles(dataSource, files, shards)));
+            }
+
+            int parsed = 0;
+            for (Future<Integer> future : workers) {
+                parsed += future.get();
+            }
+
+            System.out.println("Parsed " + parsed + " of " + files.size() + " files into shards.");
+        } catch (ExecutionException e) {
+            throw rethrow(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while parsing"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Claims the files one after the other and parses those claimed.
+     *
+     * Returns the number of files parsed.
+     */
+    private int parseClaimedFiles(String dataSource, List<String> files, ShardDirectory shards) throws IOException {
+        int parsed = 0;
+
+        for (String f : files) {
+            String key = ShardDirectory.key(dataSource, f);
+
+            if (shards.isComplete(key) || !shards.claim(key)) {
+                continue;
+            }
+
+            BodaBulkCMParser worker = newWorker(output, schemaPreloaded ? schema.copy() : new SchemaCatalog(), ParserStates.EXTRACTING_PARAMETERS);
+
+            try (RowSpool spool = RowSpool.create(shards.getSpoolFile(key))) {
+                worker.rowSpool = spool;
+                worker.parseDirectoryFile(f);
+            }
+
+            worker.schema.save(shards.getCatalogFile(key).getPath());
+            shards.complete(key, worker.footerFound ? worker.dateTime : null);								//Last, the merge only reads completed shards
+            parsed++;
+        }
+
+        return parsed;
+    }
+
+    /**
+     * Writes the rows of the shards of the data source's files, which must
+     * all have been parsed by {@link #parseShards(String, ShardDirectory)}.
+     *
+     * The columns of the shards are combined in file order before any row is
+     * written, so the headers and rows are those of a single-pass parse of
+     * the data source.
+     */
+    public void mergeShards(String dataSource, ShardDirectory shards) throws IOException {
+        List<String> keys = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+
+        for (String f : listInputFiles(dataSource)) {
+            String key = ShardDirectory.key(dataSource, f);
+
+            if (shards.isComplete(key)) {
+                keys.add(key);
+            } else if (shards.isClaimed(key)) {
+                missing.add(f + " (claimed by " + shards.getClaimant(key) + ")");
+            } else {
+                missing.add(f);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            throw new IllegalStateException("Files not parsed into shards yet: " + String.join(", ", missing)
+                    + ". Delete the claims of stopped workers to have their files parsed again.");
+        }
+
+        for (String key : keys) {
+            schema.load(shards.getCatalogFile(key).getPath());
+
+            String footerDateTime = shards.getFooterDateTime(key);
+            if (footerDateTime != null) dateTime = footerDateTime;
+        }
+
+        System.out.println("Merging " + keys.size() + " shards...");
+
+        for (String key : keys) {
+            try (RowSpool spool = RowSpool.open(shards.getSpoolFile(key))) {
+                writeSpooledRows(spool);
+            }
+        }
+
+        currentState = ParserStates.EXTRACTING_DONE;
+    }
+
+    /**
+     * Collects the columns of a part with a parser of its own.
+     */
+    private BodaBulkCMParser extractParameters(FileSplitter.Part part) throws IOException {
+        BodaBulkCMParser worker = newWorker(output, schemaPreloaded ? schema.copy() : new SchemaCatalog(), ParserStates.EXTRACTING_PARAMETERS);
+
+        if (singlePass) {
+            worker.rowSpool = new RowSpool(spoolDirectory == null ? null : new File(spoolDirectory));
+        } else {
+            worker.setRecordingEvents(true);
+        }
+
+        worker.parsePartOrSkip(part);
+
+        if (worker.rowSpool != null) {
+            worker.rowSpool.finish();
+        }
+        worker.setRecordingEvents(false);
+        return worker;
+    }
+
+    /**
+     * Parses a part, skipping it if it cannot be parsed.
+     */
+    private void parsePartOrSkip(FileSplitter.Part part) {
+        if (part.isWholeFile()) {
+            parseDirectoryFile(part.getFile());
+            return;
+        }
+
+        try {
+            parsePart(part);
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            System.out.println("Skipping part " + (part.getIndex() + 1) + " of file: " + getFileName() + "\n");
+        }
+    }
+
+    /**
+     * Creates a parser for one of the files parsed in parallel.
+     */
+    private BodaBulkCMParser newWorker(BulkOutputWriter output, SchemaCatalog schema, ParserStates state) {
+        BodaBulkCMParser worker = new BodaBulkCMParser(output, schema);
+
+        worker.copySettings(this);
+        worker.currentState = state;
+        worker.parameterFile = parameterFile;
+        worker.schemaPreloaded = schemaPreloaded;
+        return worker;
+    }
+
+    private static ExecutorService newParserPool(int threads) {
+        AtomicInteger count = new AtomicInteger();
+
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "boda-bulkcmparser-parser-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static void closeSpools(List<Future<BodaBulkCMParser>> extracted) {
+        for (Future<BodaBulkCMParser> future : extracted) {
+            try {
+                if (future.isDone() && !future.isCancelled()) {
+                    IOUtils.closeQuietly(future.get().rowSpool);
+                }
+            } catch (InterruptedException | ExecutionException ignored) { }
+        }
+    }
+
+    /**
+     * Throws the failure of a parser thread.
+     */
+    private static RuntimeException rethrow(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new IllegalStateException("Parsing failed", cause);
+    }
+
+    /**
+     * Reads the fileFooter dateTime from the end of a file without parsing the whole file.
+     * The dateTime of an archive is that of its last member with a footer.
+     *
+     * Returns null if the footer is not found.
+     */
+    @Nullable
+    private String readFooterDateTime(String filename) {
+        try {
+            if (!InputArchive.isArchive(filename)) {
+                return findFooterDateTime(readTail(filename));
+            }
+
+            String footerDateTime = null;
+
+            try (InputArchive archive = InputArchive.open(filename)) {
+                for (String member = archive.next(); member != null; member = archive.next()) {
+                    if (isIncludedMember(member)) {
+                        try (InputStream in = archive.openMember()) {
+                            String memberDateTime = findFooterDateTime(readTail(in));
+                            if (memberDateTime != null) footerDateTime = memberDateTime;
+                        }
+                    }
+                }
+            }
+
+            return footerDateTime;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static String findFooterDateTime(byte[] tail) {
+        Matcher m = FOOTER_DATETIME.matcher(new String(tail, StandardCharsets.UTF_8));
+        String footerDateTime = null;
+
+        while (m.find()) {
+            footerDateTime = m.group(2);
+        }
+
+        return footerDateTime;
+    }
+
+    /**
+     * Reads the last bytes of a file. Compressed files are decompressed up to their end.
+     */
+    private static byte[] readTail(String filename) throws IOException {
+        if (CompressedInput.detect(filename) != null) {
+            try (InputStream in = CompressedInput.open(filename)) {
+                return readTail(in);
+            }
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+            long start = Math.max(0, file.length() - FOOTER_SCAN_SIZE);
+            byte[] tail = new byte[(int) (file.length() - start)];
+
+            file.seek(start);
+            file.readFully(tail);
+            return tail;
+        }
+    }
+
+    /**
+     * Reads the stream to its end and returns its last bytes.
+     */
+    private static byte[] readTail(InputStream in) throws IOException {
+        byte[] buffer = new byte[2 * FOOTER_SCAN_SIZE];
+        int length = 0;
+        int n;
+
+        while ((n = in.read(buffer, length, buffer.length - length)) >= 0) {
+            length += n;
+
+            if (length == buffer.length) {
+                System.arraycopy(buffer, FOOTER_SCAN_SIZE, buffer, 0, FOOTER_SCAN_SIZE);			//Keep the last FOOTER_SCAN_SIZE bytes read
+                length = FOOTER_SCAN_SIZE;
+            }
+        }
+
+        return Arrays.copyOfRange(buffer, Math.max(0, length - FOOTER_SCAN_SIZE), length);
+    }
+
     @Override
     protected void reset() {
     	super.reset();
@@ -192,36 +813,36 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
         vsDataType = null;
         vsDataTypes.clear();
         vsDataTypeAttributes.clear();
-        moAttributes.clear();
+        parentIds.clear();
+        text.setLength(0);
         
         isProcessingMOAttributes = false;
     }
     
     @Override
-    protected void onStartElement(StartElement startElement) {
-        String qName = startElement.getName().getLocalPart();
-        final String prefix = startElement.getName().getPrefix();
+    protected void onStartElement(String prefix, String qName, ElementAttributes attributes) {
+        endText();
 
-        Iterator<Attribute> attributes = startElement.getAttributes();
+        final TagTable.Tag tag = tags.get(prefix, qName);
 
-        if ("fileFooter".equals(qName) && ParserStates.EXTRACTING_PARAMETERS == currentState) {
-            while (attributes.hasNext()) {
-                Attribute attribute = attributes.next();
-                if ("dateTime".equals(attribute.getName().toString())) {
-                    dateTime = attribute.getValue();
+        if (tag.fileFooter && ParserStates.EXTRACTING_PARAMETERS == currentState) {
+            for (int i = 0; i < attributes.getAttributeCount(); i++) {
+                if (attributes.getAttributePrefix(i).isEmpty() && "dateTime".equals(attributes.getAttributeLocalName(i))) {
+                    dateTime = attributes.getAttributeValue(i);
+                    footerFound = true;
                 }
             }
         }
         
-        if ("VsDataContainer".equalsIgnoreCase(qName)) {													//E1:0. xn:VsDataContainer encountered Push vendor specific MOs to the xmlTagStack
+        if (tag.kind == TagTable.Kind.VS_DATA_CONTAINER) {													//E1:0. xn:VsDataContainer encountered Push vendor specific MOs to the xmlTagStack
             depth++;
 
             xmlTagStack.push("VsDataContainer_" + depth);
+            parentIds.push(xmlTagStack.peek());
 
-            while (attributes.hasNext()) {
-                Attribute attribute = attributes.next();
-                if ("id".equals(attribute.getName().toString())) {
-                    moAttributes.grow(depth).put("id", attribute.getValue());
+            for (int i = 0; i < attributes.getAttributeCount(); i++) {
+                if (attributes.getAttributePrefix(i).isEmpty() && "id".equals(attributes.getAttributeLocalName(i))) {
+                    parentIds.put("id", attributes.getAttributeValue(i));
                 }
             }
 
@@ -231,7 +852,7 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
             return;
         }
         																									//E1:1
-        if (!"xn".equalsIgnoreCase(prefix) && qName.startsWith("vsData")) {
+        if (tag.kind == TagTable.Kind.VS_DATA_TYPE) {
             vsDataType = qName;
             vsDataContainerTypeMap.put("VsDataContainer_" + depth, qName);
 
@@ -239,14 +860,13 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
         }
        																										//E1.2
         if (vsDataType != null) {
-            if (!vsDataTypes.containsKey(qName)) {
-                vsDataTypes.put(qName, null);
+            if (vsDataTypes.putIfAbsent(qName)) {
                 vsDataTypeAttributes.push(qName);
             }
             return;
         }
         																									//E1.3
-        if ("attributes".equals(qName)) {
+        if (tag.kind == TagTable.Kind.ATTRIBUTES) {
             isProcessingMOAttributes = true;
             return;
         }
@@ -256,7 +876,7 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
         } else {																							//E1.5
 	        if (isProcessingMOAttributes == true && vsDataType == null) {
 	            xnAttributes.push(qName);																	//Tracks the hierarchy of tags under xn:attributes
-	            threeGPPAttributes.grow(depth).putIfAbsent(qName, null);									//Check if the parameter is already in the stack so we don't overwrite it.
+	            threeGPPAttributes.grow(depth).putIfAbsent(qName);										//Check if the parameter is already in the stack so we don't overwrite it.
 	
 	            return;
 	        }
@@ -264,32 +884,79 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
         																									//E1.6 - Push 3GPP Defined MOs to the xmlTagStack
         depth++;
         xmlTagStack.push(qName);
+        parentIds.push(qName);
 
-        Map<String, String> arts = moAttributes.grow(depth);
-        while (attributes.hasNext()) {
-            Attribute attribute = attributes.next();
-
-            arts.put(attribute.getName().getLocalPart(), attribute.getValue());
+        for (int i = 0; i < attributes.getAttributeCount(); i++) {
+            parentIds.put(attributes.getAttributeLocalName(i), attributes.getAttributeValue(i));
         }
     }
     
     @Override
-    protected void onCharacters(Characters characters) {
-        if (!characters.isWhiteSpace()) {
-            tagData = characters.getData();
+    protected void onCharacters(char[] text, int start, int length) {
+        this.text.append(text, start, length);
+    }
+
+    /**
+     * Keeps the text read since the previous tag as the tag data, unless it is whitespace.
+     *
+     * The parsers report text in chunks, e.g. an entity reference is a chunk
+     * of its own, so the chunks are coalesced until the next tag.
+     */
+    private void endText() {
+        if (text.length() == 0) {
+            return;
         }
+
+        if (!isWhiteSpace(text)) {
+            StringBuilder data = tagData;
+            tagData = text;
+            text = data;
+        }
+
+        text.setLength(0);
+    }
+
+    private static boolean isWhiteSpace(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != ' ' && c != '\n' && c != '\t' && c != '\r') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns parent + "_" + child, reusing the String built for the pair before.
+     */
+    private String childParameterName(String parent, String child) {
+        Map<String, String> names = childParameterNames.get(parent);
+
+        if (names == null) {
+            names = new HashMap<>();
+            childParameterNames.put(parent, names);
+        }
+
+        String name = names.get(child);
+
+        if (name == null) {
+            name = parent + CHILD_ATTRIBUTE_SEPARATOR + child;
+            names.put(child, name);
+        }
+
+        return name;
     }
 
     @Override
-    protected void onEndElement(EndElement endElement) {
-        final String prefix = endElement.getName().getPrefix();
-        final String qName = endElement.getName().getLocalPart();
+    protected void onEndElement(String prefix, String qName) {
+        endText();
 
-        final boolean isVsDataContainer = "VsDataContainer".equalsIgnoreCase(qName);
-        
-        if (isVsDataContainer) {															//E3:1 - </xn:VsDataContainer>
+        final TagTable.Kind kind = tags.get(prefix, qName).kind;
+
+        if (kind == TagTable.Kind.VS_DATA_CONTAINER) {															//E3:1 - </xn:VsDataContainer>
             xmlTagStack.pop();
-            moAttributes.remove(depth);
+            parentIds.pop();
             vsDataContainerTypeMap.remove(Integer.toString(depth));
             threeGPPAttributes.remove(depth);
             depth--;
@@ -297,20 +964,22 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
             return;
         }
 
-        if ("attributes".equals(qName)) {													//E3.2 - </xn:attributes>
+        if (kind == TagTable.Kind.ATTRIBUTES) {												//E3.2 - </xn:attributes>
             isProcessingMOAttributes = false;
 
-            if (currentState == ParserStates.EXTRACTING_PARAMETERS && vsDataType == null) {
+            if (isCollectingParameters() && vsDataType == null) {
                 collectThreeGPPAttributes();
             }
             
             return;
         }
     																						//E3:3 - xx:vsData<VendorSpecificDataType>
-        if (qName.startsWith("vsData") && !isVsDataContainer && !"xn".equals(prefix)) { 	//This skips xn:vsDataType
-            if (currentState == ParserStates.EXTRACTING_PARAMETERS) {
+        if (kind == TagTable.Kind.VS_DATA_TYPE) {											//This skips xn:vsDataType
+            if (isCollectingParameters()) {
                 collectVendorAttributes();
-            } else {
+            }
+
+            if (currentState != ParserStates.EXTRACTING_PARAMETERS || rowSpool != null) {
                 printVendorAttributes();
             }
 
@@ -334,21 +1003,16 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
             if (vsDataTypeAttributes.size() > 1) {											 //There is a parent with children
                 String parentTag = vsDataTypeAttributes.get(vsDataTypeAttributes.size() - 2);
                 
-                newTag = parentTag + CHILD_ATTRIBUTE_SEPARATOR + qName;
+                newTag = childParameterName(parentTag, qName);
 
                 parentChildParameters.put(parentTag, qName);								//Store the parent and it's child
                 vsDataTypes.remove(qName);													//Remove this tag from the tag stack.
 
             }
 
-            String data = vsDataTypes.getOrDefault(newTag, null);
-            if (data == null) data = "";
-            if (!data.isEmpty()) data += VALUE_SEPARATOR;									// Handle multi-valued parameters
-            data += tagData;
-
             // TODO: Handle cases of multi values parameters and parameters with children. For now continue as if they don't exist
-            vsDataTypes.put(newTag, data);
-            tagData = "";
+            vsDataTypes.append(newTag, tagData);											// Handle multi-valued parameters
+            tagData.setLength(0);
             
             vsDataTypeAttributes.popIfPresent();
         }
@@ -356,7 +1020,7 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
         //E3.5
         //Process tags under xn:attributes.
         if (isProcessingMOAttributes == true && vsDataType == null) {
-            Map<String, String> cMap = threeGPPAttributes.get(depth);						//Handle attributes with children. Do this when parent end tag is encountered.
+            AttributeSlot cMap = threeGPPAttributes.grow(depth);							//Handle attributes with children. Do this when parent end tag is encountered.
 
             if (attrParentChildMap.containsKey(qName)) {									//Remove the parent from the threeGPPAttrStack so we don't output data for it.
                 attrParentChildMap.remove(qName);
@@ -378,17 +1042,11 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
 
                 cMap.remove(qName);															//Remove the child tag from the 3gpp xnAttribute stack
 
-                newTag = parentXnAttr + CHILD_ATTRIBUTE_SEPARATOR + qName;
+                newTag = childParameterName(parentXnAttr, qName);
             }
 
-            String data = cMap.getOrDefault(newTag, null);									//For multi-valued attributes, first check if the tag already exits and append new ones
-            
-            if (data == null) data = "";
-            if (!data.isEmpty()) data += VALUE_SEPARATOR;
-            cMap.put(newTag, data + tagData);
-            
-            
-            tagData = "";
+            cMap.append(newTag, tagData);													//For multi-valued attributes, the new value is appended to the existing ones
+            tagData.setLength(0);
             xnAttributes.pop();
             return;
         }
@@ -401,12 +1059,12 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
             //    theTag = qName + "_" + occurrence;
             //}
 
-            if (currentState != ParserStates.EXTRACTING_PARAMETERS) {
+            if (currentState != ParserStates.EXTRACTING_PARAMETERS || rowSpool != null) {
                 print3GPPAttributes();
             }
 
             xmlTagStack.pop();
-            moAttributes.remove(depth);
+            parentIds.pop();
             threeGPPAttributes.remove(depth);
             depth--;
         }
@@ -424,49 +1082,28 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
             return;
         }
 
-        String paramNames = "FileName,varDateTime";
-        String paramValues = getFileName() + "," + dateTime;
-
-        Stack<String> ignoreInParameterFile = new Stack<>();
+        AttributeSlot attrs = threeGPPAttributes.get(depth);													//Get 3GPP attributes for MO at the current depth
 
-        for (int i = 0; i < xmlTagStack.size(); i++) {															//Parent IDs
-            Map<String, String> attr = moAttributes.get(i + 1);													//The depth at each xml tag index is index+1
-
-            if (attr != null) {
-            	String parentMO = xmlTagStack.get(i);
-                																								//Iterate through the XML attribute tags for the element.
-                for (Map.Entry<String, String> entry : attr.entrySet()) {
-                    String pName = parentMO + "_" + entry.getKey();
-                    
-                    paramNames += "," + pName;
-                    paramValues += "," + CSVUtils.toCSVFormat(entry.getValue());
-
-                    ignoreInParameterFile.push(pName);
-                }
-            }
+        if (rowSpool != null) {
+            spoolRow(RowSpool.THREEGPP_ROW, mo, parentIds.threeGPP(), attrs);
+        } else {
+            write3GPPRow(mo, getFileName(), parentIds.threeGPP(), attrs);
         }
+    }
 
-        if (moThreeGPPAttributes.get(mo) != null) {																//Some MOs don't have 3GPP attributes e.g. the fileHeader and the fileFooter
-              Map<String, String> attrs = threeGPPAttributes.get(depth);										//Get 3GPP attributes for MO at the current depth
-
-              for (String aAttr : CSVUtils.sortedColumns(moThreeGPPAttributes.get(mo))) {
-                  if (ignoreInParameterFile.contains(aAttr)														//Skip parameters listed in the parameter file that are already in the xmlTagList
-                		  || "filename".equalsIgnoreCase(aAttr) || "vardatetime".equalsIgnoreCase(aAttr)) {		//Skip fileName and dateTime in the parameter file as they are added by default
-                	  continue;
-                  }
-
-                  String aValue = "";
-
-                  if (attrs != null && attrs.containsKey(aAttr)){
-                      aValue = CSVUtils.toCSVFormat(attrs.get(aAttr));
-                  }
+    /**
+     * Writes a 3GPP MO row using the collected 3GPP attributes of the MO as columns.
+     */
+    private void write3GPPRow(String mo, String fileName, ParentIds parentIdValues, @Nullable RowValues attrs) {
+        ColumnSet columns = moThreeGPPAttributes.get(mo);												//Some MOs don't have 3GPP attributes e.g. the fileHeader and the fileFooter
+        RowLayout layout = threeGPPLayouts.get(mo);
 
-                  paramNames += "," + aAttr;
-                  paramValues += "," + aValue;
-              }
+        if (layout == null || !layout.matchesThreeGPP(parentIdValues, columns)) {
+            layout = RowLayout.threeGPP(parentIdValues, columns).open(output, mo);
+            threeGPPLayouts.put(mo, layout);
         }
 
-        output.writeLine(mo, paramNames, paramValues);
+        layout.writeThreeGPP(fileName, dateTime, parentIdValues, attrs);
     }
 
     /**
@@ -478,50 +1115,37 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
             return;																							//Skip if the MO is not in the parameterFile
         }
 
-        String paramNames = "FileName,varDateTime";
-        String paramValues = getFileName() + "," + dateTime;
-
-        Map<String,String> parentIdValues = new LinkedHashMap<>();
+        ParentIds parentIdValues = parentIds.vendor(vsDataContainerTypeMap);							//VsDataContainer parents are named after their vendor specific MO
 
-        //Parent MO IDs
-        for (int i = 0; i < xmlTagStack.size(); i++) {
-            String parentMO = xmlTagStack.get(i);															//Get the parent tag from the stack
-
-            if (parentMO.startsWith("VsDataContainer")) {
-                parentMO = vsDataContainerTypeMap.get(parentMO);											//If the parent tag is VsDataContainer, look for the vendor specific MO in the vsDataContainer-to-vsDataType map.			
-            }
-
-            Map<String, String> m = moAttributes.get(i + 1);												//The depth at each XML tag in xmlTagStack is given by index+1.
-            
-            if (m != null) {
-                for (Map.Entry<String, String> meMap : m.entrySet()) {
-                    parentIdValues.put(parentMO + "_" + meMap.getKey(), CSVUtils.toCSVFormat(meMap.getValue()));
-                }
-            }
+        if (rowSpool != null) {
+            spoolRow(RowSpool.VENDOR_ROW, vsDataType, parentIdValues, vsDataTypes);
+        } else {
+            writeVendorRow(vsDataType, getFileName(), parentIdValues, vsDataTypes);
         }
+    }
 
-        for (String pName : moColumnsParentIds.get(vsDataType)) {
-            paramNames += "," + pName;
-            paramValues += "," + parentIdValues.getOrDefault(pName, "");
+    /**
+     * Writes a vendor specific MO row using the collected parent IDs and parameters of the MO as columns.
+     */
+    private void writeVendorRow(String mo, String fileName, ParentIds parentIdValues, RowValues values) {
+        ColumnSet parentIds = moColumnsParentIds.get(mo);
+        ColumnSet columns = moColumns.get(mo);
+        RowLayout layout = vendorLayouts.get(mo);
+
+        if (layout == null || !layout.matchesVendor(parentIds, columns)) {
+            layout = RowLayout.vendor(parentIds, columns, parameterFile != null).open(output, mo);						//Skip parent parameters / parentIds listed in the parameter file
+            vendorLayouts.put(mo, layout);
         }
 
-        for (String pName : CSVUtils.sortedColumns(moColumns.get(vsDataType))) {							//Iterate through the columns already collected
-            if ((parameterFile != null && moColumnsParentIds.get(vsDataType).contains(pName))				//Skip parent parameters / parentIds listed in the parameter file
-            		|| "FileName".equals(pName) || "varDateTime".equals(pName)) {
-            	continue;
-            }
-
-            String pValue = "";
-            
-            if (vsDataTypes.containsKey(pName)) {
-                pValue = CSVUtils.toCSVFormat(vsDataTypes.get(pName));
-            }
+        layout.writeVendor(fileName, dateTime, parentIdValues, values);
+    }
 
-            paramNames += "," + pName;
-            paramValues += "," + pValue;
+    private void spoolRow(byte kind, String mo, ParentIds parentIdValues, @Nullable RowValues values) {
+        try {
+            rowSpool.append(kind, mo, getFileName(), parentIdValues.toMap(), values == null ? null : values.toMap());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-
-        output.writeLine(vsDataType, paramNames, paramValues);
     }
 
     /**
@@ -541,17 +1165,39 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
         	return;
         }
 
-        Map<String, String> attrs = threeGPPAttributes.get(depth);										// Holds the current 3GPP attributes
+        AttributeSlot attrs = threeGPPAttributes.get(depth);											// Holds the current 3GPP attributes
 
         if (attrs == null) {
         	return;
         }
         
         if (parameterFile == null) {																	//Only add missing parameter if a paramterFile was not specified. The parameter file parameter list is our only interest in this case
-        	moThreeGPPAttributes.grow(mo).pushAll(attrs.keySet());										//Initialize if the MO does not exist
+        	ColumnSet columns = moThreeGPPAttributes.grow(mo);								//Initialize if the MO does not exist
+        	int knownColumns = columns.size();
+
+        	columns.addAll(attrs);
+        	checkColumnsGrown(mo, knownColumns, columns.size());
     	}
     }
 
+    /**
+     * Whether the parameters are collected during the current stage.
+     */
+    private boolean isCollectingParameters() {
+        return currentState == ParserStates.EXTRACTING_PARAMETERS || schemaPreloaded;
+    }
+
+    /**
+     * Warns when columns missing from the schema catalog are found after the rows of the MO have been written.
+     *
+     * The rows that follow have a different header and are redirected to another file by the output writer.
+     */
+    private void checkColumnsGrown(String mo, int knownColumns, int columns) {
+        if (currentState == ParserStates.EXTRACTING_VALUES && knownColumns > 0 && columns > knownColumns && grownMOs.add(mo)) {
+            System.out.printf("Warning: %s has columns which are not in the schema catalog.\n", mo);
+        }
+    }
+
     /**
      * Collect parameters for vendor specific mo data
      */
@@ -560,29 +1206,21 @@ public class BodaBulkCMParser extends AbstractFileParser implements Closeable {
         	return;																						//If MO is not in the parameter list, then don't continue
         }
 
-        moColumns.grow(vsDataType);
+        ColumnSet columns = moColumns.grow(vsDataType);
+        																								//Parent IDs
+        ColumnSet parentIDStack = moColumnsParentIds.grow(vsDataType);						//Holds parent element IDs
+        int knownColumns = parentIDStack.isEmpty() ? 0 : columns.size() + parentIDStack.size();		//No parent IDs yet means no rows have been written for the MO
 
         if (parameterFile == null) {																	//Only update the moColumns list if the parameterFile is not set else use the list provided in the parameterFile
-        	moColumns.get(vsDataType).pushAll(vsDataTypes.keySet());
+        	columns.addAll(vsDataTypes);
         }
-        																								//Parent IDs
-        DistinctStack<String> parentIDStack = moColumnsParentIds.grow(vsDataType);						//Holds parent element IDs
         
-        for (int i = 0; i < xmlTagStack.size(); i++) {
-            String parentMO = xmlTagStack.get(i);
-
-            if (parentMO.startsWith("VsDataContainer")) {												//If the parent tag is VsDataContainer, look for the vendor specific MO in the vsDataContainer-to-vsDataType map.
-                parentMO = vsDataContainerTypeMap.get(parentMO);
-            }
-
-            Map<String, String> pnames = moAttributes.get(i + 1);
-            
-            if (pnames != null) {
-                for (String pName : pnames.keySet()) {													// Iterate through the XML attribute tags for the element.
-                    parentIDStack.pushIfAbsent(parentMO + CHILD_ATTRIBUTE_SEPARATOR + pName);
-                }
-            }
+        ParentIds parentIdValues = parentIds.vendor(vsDataContainerTypeMap);
+        for (int i = 0; i < parentIdValues.size(); i++) {
+            parentIDStack.add(parentIdValues.getColumn(i));
         }
+
+        checkColumnsGrown(vsDataType, knownColumns, columns.size() + parentIDStack.size());
     }
 
     @Override
@@ -0,0 +1,900 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Byte level XML scanner for 3GPP Bulk CM files.
+ *
+ * Bulk CM files use a small subset of XML: UTF-8, no DTDs and mostly short
+ * text nodes. The scanner tokenizes the raw bytes and passes the events
+ * straight to the parser's handlers. Element names are looked up in a name
+ * cache so no String is created for a name that has been seen before, and
+ * text is decoded into a reusable char buffer.
+ *
+ * Text is split into chunks the same way the JDK StAX parser does it: every
+ * entity or character reference, CDATA section, comment and processing
+ * instruction starts a new chunk.
+ *
+ * {@link #parse(InputStream, AbstractFileParser)} returns false without producing any event if
+ * the document uses a construct the scanner does not support (a DOCTYPE or
+ * an encoding other than UTF-8), so the caller can fall back to StAX.
+ */
+public class BulkCmScanner implements XmlBackend {
+
+    public static final String NAME = "scanner";
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private AbstractFileParser parser;
+
+    private InputStream in;
+
+    private byte[] buf = new byte[BUFFER_SIZE];
+
+    private int pos = 0;
+
+    private int limit = 0;
+
+    /**
+     * Start of the bytes which must be kept when the buffer is refilled, or -1.
+     */
+    private int mark = -1;
+
+    private boolean eof = false;
+
+    /**
+     * Decoded text of the current chunk.
+     */
+    private char[] text = new char[1024];
+
+    private int textLength = 0;
+
+    private final NameCache names = new NameCache();
+
+    private final ScannerAttributes attributes = new ScannerAttributes();
+
+    /**
+     * Open elements.
+     */
+    private String[] prefixStack = new String[32];
+    private String[] localNameStack = new String[32];
+
+    private int depth = 0;
+
+    /**
+     * In scope namespace prefix bindings and the depth they were declared at.
+     */
+    private String[] nsPrefixes = new String[16];
+    private String[] nsURIs = new String[16];
+    private int[] nsDepths = new int[16];
+    private int nsCount = 0;
+
+    /**
+     * Set once the first event has been passed to the parser.
+     */
+    private boolean started = false;
+
+    private long line = 1;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Scans the document.
+     *
+     * @return false if the document uses a construct the scanner does not
+     *         support. No events have been produced in this case.
+     */
+    @Override
+    public boolean parse(InputStream input, AbstractFileParser parser) throws IOException, XMLStreamException {
+        this.parser = parser;
+        in = input;
+        pos = limit = 0;
+        mark = -1;
+        eof = false;
+        depth = nsCount = 0;
+        started = false;
+        line = 1;
+
+        if (available(3) && buf[0] == (byte) 0xEF && buf[1] == (byte) 0xBB && buf[2] == (byte) 0xBF) {
+            pos = 3;                                                                            //UTF-8 byte order mark
+        } else if (available(2) && (buf[0] == (byte) 0xFE || buf[0] == (byte) 0xFF || buf[0] == 0 || buf[1] == 0)) {
+            return false;                                                                       //UTF-16 or UTF-32
+        }
+
+        while (true) {
+            if (pos == limit && !more()) {
+                break;
+            }
+
+            if (buf[pos] == '<') {
+                pos++;
+                if (!scanMarkup()) {
+                    return false;
+                }
+            } else if (depth > 0) {
+                scanText();
+            } else {
+                skipWhiteSpace();
+                if (pos < limit && buf[pos] != '<') {
+                    throw error("Content is not allowed outside the root element");
+                }
+            }
+        }
+
+        if (!started) {
+            throw error("Premature end of file");
+        }
+        if (depth > 0) {
+            throw error("XML document structures must start and end within the same entity");
+        }
+
+        return true;
+    }
+
+    /**
+     * Scans markup after '&lt;'.
+     *
+     * @return false if the markup is not supported
+     */
+    private boolean scanMarkup() throws IOException, XMLStreamException {
+        int b = peek();
+
+        if (b == '/') {
+            pos++;
+            scanEndTag();
+        } else if (b == '?') {
+            pos++;
+            return scanProcessingInstruction();
+        } else if (b == '!') {
+            pos++;
+            if (startsWith("--")) {
+                pos += 2;
+                skipPast("-->");
+            } else if (startsWith("[CDATA[")) {
+                pos += 7;
+                scanCData();
+            } else if (startsWith("DOCTYPE") && !started) {
+                return false;
+            } else {
+                throw error("Unsupported markup declaration");
+            }
+        } else {
+            scanStartTag();
+        }
+
+        return true;
+    }
+
+    private void scanStartTag() throws IOException, XMLStreamException {
+        if (depth == 0 && started) {
+            throw error("The markup in the document following the root element must be well-formed");
+        }
+
+        scanName();
+        String prefix = scannedPrefix;
+        String localName = scannedLocalName;
+
+        attributes.clear();
+        int declaredNamespaces = nsCount;
+
+        while (true) {
+            boolean space = skipWhiteSpace();
+            int b = peek();
+
+            if (b == '>') {
+                pos++;
+                break;
+            }
+
+            if (b == '/') {
+                pos++;
+                expect('>');
+                startElement(prefix, localName, declaredNamespaces);
+                endElement(prefix, localName);
+                return;
+            }
+
+            if (!space) {
+                throw error("Element type \"" + localName + "\" must be followed by either attribute specifications, \">\" or \"/>\"");
+            }
+
+            scanAttribute();
+        }
+
+        startElement(prefix, localName, declaredNamespaces);
+    }
+
+    private void startElement(String prefix, String localName, int declaredNamespaces) throws XMLStreamException {
+        if (depth == prefixStack.length) {
+            prefixStack = Arrays.copyOf(prefixStack, depth * 2);
+            localNameStack = Arrays.copyOf(localNameStack, depth * 2);
+        }
+        prefixStack[depth] = prefix;
+        localNameStack[depth++] = localName;
+
+        for (int i = declaredNamespaces; i < nsCount; i++) {
+            nsDepths[i] = depth;
+        }
+
+        if (!prefix.isEmpty() && namespaceURI(prefix) == null) {
+            throw error("The prefix \"" + prefix + "\" for element \"" + prefix + ":" + localName + "\" is not bound");
+        }
+
+        attributes.resolve();
+
+        started = true;
+        parser.startElement(prefix, localName, attributes);
+    }
+
+    private void scanEndTag() throws IOException, XMLStreamException {
+        scanName();
+        skipWhiteSpace();
+        expect('>');
+
+        String prefix = scannedPrefix;
+        String localName = scannedLocalName;
+        if (depth == 0) {
+            throw error("The element type \"" + qName(prefix, localName) + "\" must be terminated by the matching end-tag");
+        }
+        if (!localNameStack[depth - 1].equals(localName) || !prefixStack[depth - 1].equals(prefix)) {
+            throw error("The element type \"" + qName(prefixStack[depth - 1], localNameStack[depth - 1]) + "\" must be terminated by the matching end-tag");
+        }
+
+        endElement(prefix, localName);
+    }
+
+    private static String qName(String prefix, String localName) {
+        return prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    private void endElement(String prefix, String localName) {
+        parser.endElement(prefix, localName);
+
+        depth--;
+        while (nsCount > 0 && nsDepths[nsCount - 1] > depth) {
+            nsCount--;
+        }
+    }
+
+    private void scanAttribute() throws IOException, XMLStreamException {
+        scanName();
+        String prefix = scannedPrefix;
+        String localName = scannedLocalName;
+
+        skipWhiteSpace();
+        expect('=');
+        skipWhiteSpace();
+
+        int quote = peek();
+        if (quote != '"' && quote != '\'') {
+            throw error("Open quote is expected for attribute \"" + localName + "\"");
+        }
+        pos++;
+
+        textLength = 0;
+
+        while (true) {
+            if (pos == limit && !more()) {
+                throw error("Unexpected end of file in attribute value");
+            }
+
+            int b = buf[pos];
+
+            if (b == quote) {
+                pos++;
+                break;
+            } else if (b == '&') {
+                pos++;
+                scanReference();
+            } else if (b == '<') {
+                throw error("The value of attribute \"" + localName + "\" must not contain the '<' character");
+            } else if (b == '\r') {                                                             //Attribute value normalization
+                pos++;
+                if (available(1) && buf[pos] == '\n') pos++;
+                line++;
+                appendText(' ');
+            } else if (b == '\n' || b == '\t') {
+                if (b == '\n') line++;
+                pos++;
+                appendText(' ');
+            } else {
+                decodeChar();
+            }
+        }
+
+        if ("xmlns".equals(prefix)) {
+            declareNamespace(localName, new String(text, 0, textLength));
+        } else if (prefix.isEmpty() && "xmlns".equals(localName)) {
+            declareNamespace("", new String(text, 0, textLength));
+        } else {
+            attributes.add(prefix, localName, text, textLength);
+        }
+
+        textLength = 0;
+    }
+
+    private void declareNamespace(String prefix, String uri) {
+        if (nsCount == nsPrefixes.length) {
+            nsPrefixes = Arrays.copyOf(nsPrefixes, nsCount * 2);
+            nsURIs = Arrays.copyOf(nsURIs, nsCount * 2);
+            nsDepths = Arrays.copyOf(nsDepths, nsCount * 2);
+        }
+
+        nsPrefixes[nsCount] = prefix;
+        nsURIs[nsCount] = uri;
+        nsDepths[nsCount] = Integer.MAX_VALUE;                                                  //Set when the element is pushed
+        nsCount++;
+    }
+
+    private String namespaceURI(String prefix) {
+        if ("xml".equals(prefix)) {
+            return "http://www.w3.org/XML/1998/namespace";
+        }
+
+        for (int i = nsCount - 1; i >= 0; i--) {
+            if (nsPrefixes[i].equals(prefix)) {
+                return nsURIs[i];
+            }
+        }
+
+        return prefix.isEmpty() ? "" : null;
+    }
+
+    private void scanText() throws IOException, XMLStreamException {
+        textLength = 0;
+
+        while (true) {
+            if (pos == limit && !more()) {
+                break;
+            }
+
+            int b = buf[pos];
+
+            if (b == '<') {
+                break;
+            } else if (b == '&') {
+                flushText();
+                pos++;
+                scanReference();
+                flushText();                                                                    //A reference is a chunk of its own
+            } else if (b == '\r') {
+                pos++;
+                if (available(1) && buf[pos] == '\n') pos++;
+                line++;
+                appendText('\n');
+            } else if (b >= 0) {
+                if (b == '\n') line++;
+                pos++;
+                appendText((char) b);
+            } else {
+                decodeChar();
+            }
+        }
+
+        flushText();
+    }
+
+    private void scanCData() throws IOException, XMLStreamException {
+        textLength = 0;
+
+        while (true) {
+            if (!available(3)) {
+                throw error("The CDATA section must end with \"]]>\"");
+            }
+
+            int b = buf[pos];
+
+            if (b == ']' && buf[pos + 1] == ']' && buf[pos + 2] == '>') {
+                pos += 3;
+                break;
+            } else if (b == '\r') {
+                pos++;
+                if (buf[pos] == '\n') pos++;
+                line++;
+                appendText('\n');
+            } else if (b >= 0) {
+                if (b == '\n') line++;
+                pos++;
+                appendText((char) b);
+            } else {
+                decodeChar();
+            }
+        }
+
+        flushText();
+    }
+
+    /**
+     * Passes the decoded text to the parser as one chunk.
+     */
+    private void flushText() {
+        if (textLength > 0) {
+            parser.characters(text, 0, textLength);
+            textLength = 0;
+        }
+    }
+
+    /**
+     * Scans an entity or character reference after '&amp;' into the text buffer.
+     */
+    private void scanReference() throws IOException, XMLStreamException {
+        mark = pos;
+        while (true) {
+            if (pos == limit && !more()) {
+                throw error("The entity reference must end with the ';' delimiter");
+            }
+            if (buf[pos] == ';') {
+                break;
+            }
+            if (pos - mark > 12) {
+                throw error("The entity reference must end with the ';' delimiter");
+            }
+            pos++;
+        }
+
+        int start = mark;
+        int length = pos - mark;
+        mark = -1;
+        pos++;
+
+        if (length > 1 && buf[start] == '#') {
+            int codePoint = 0;
+            boolean hex = buf[start + 1] == 'x';
+
+            for (int i = start + (hex ? 2 : 1); i < start + length; i++) {
+                int digit = Character.digit(buf[i], hex ? 16 : 10);
+                if (digit < 0) {
+                    throw error("Invalid character reference");
+                }
+                codePoint = codePoint * (hex ? 16 : 10) + digit;
+            }
+
+            if (!Character.isValidCodePoint(codePoint)) {
+                throw error("Invalid character reference");
+            }
+
+            if (Character.isBmpCodePoint(codePoint)) {
+                appendText((char) codePoint);
+            } else {
+                appendText(Character.highSurrogate(codePoint));
+                appendText(Character.lowSurrogate(codePoint));
+            }
+        } else if (matches(start, length, "amp")) {
+            appendText('&');
+        } else if (matches(start, length, "lt")) {
+            appendText('<');
+        } else if (matches(start, length, "gt")) {
+            appendText('>');
+        } else if (matches(start, length, "quot")) {
+            appendText('"');
+        } else if (matches(start, length, "apos")) {
+            appendText('\'');
+        } else {
+            throw error("The entity \"" + new String(buf, start, length, StandardCharsets.UTF_8) + "\" was referenced, but not declared");
+        }
+    }
+
+    /**
+     * Scans a processing instruction after '&lt;?'.
+     *
+     * @return false if the XML declaration names an encoding other than UTF-8
+     */
+    private boolean scanProcessingInstruction() throws IOException, XMLStreamException {
+        if (!started && startsWith("xml") && available(4) && isWhiteSpace(buf[pos + 3])) {
+            mark = pos;
+            skipPast("?>");
+            String declaration = new String(buf, mark, pos - mark, StandardCharsets.US_ASCII);
+            mark = -1;
+
+            int i = declaration.indexOf("encoding");
+            if (i >= 0) {
+                String encoding = declaration.substring(i + 8).replaceAll("^\\s*=\\s*[\"']([^\"']*)[\"'][\\s\\S]*$", "$1");
+                return "UTF-8".equalsIgnoreCase(encoding) || "UTF8".equalsIgnoreCase(encoding) || "US-ASCII".equalsIgnoreCase(encoding);
+            }
+
+            return true;
+        }
+
+        skipPast("?>");
+        return true;
+    }
+
+    /**
+     * Scans a name and splits it into {@link #scannedPrefix} and {@link #scannedLocalName}.
+     */
+    private void scanName() throws IOException, XMLStreamException {
+        mark = pos;
+        int colon = -1;
+
+        while (true) {
+            if (pos == limit) {
+                int shift = mark;
+                if (!more()) {
+                    throw error("Unexpected end of file in name");
+                }
+                if (colon >= 0) colon -= shift;
+            }
+
+            int b = buf[pos];
+
+            if (b == ':' && colon < 0) {
+                colon = pos;
+            } else if (b == ' ' || b == '>' || b == '/' || b == '=' || b == '\n' || b == '\t' || b == '\r' || b == '<' || b == '"' || b == '\'') {
+                break;
+            }
+            pos++;
+        }
+
+        if (pos == mark || colon == mark || colon == pos - 1) {
+            throw error("Invalid name");
+        }
+
+        if (colon < 0) {
+            scannedPrefix = "";
+            scannedLocalName = names.get(buf, mark, pos);
+        } else {
+            scannedPrefix = names.get(buf, mark, colon);
+            scannedLocalName = names.get(buf, colon + 1, pos);
+        }
+
+        mark = -1;
+    }
+
+    private String scannedPrefix;
+
+    private String scannedLocalName;
+
+    /**
+     * Decodes one UTF-8 encoded character starting at pos into the text buffer.
+     */
+    private void decodeChar() throws IOException, XMLStreamException {
+        int b = buf[pos] & 0xFF;
+        int n;
+        int codePoint;
+
+        if (b < 0x80) {
+            pos++;
+            appendText((char) b);
+            return;
+        } else if ((b & 0xE0) == 0xC0) {
+            n = 1;
+            codePoint = b & 0x1F;
+        } else if ((b & 0xF0) == 0xE0) {
+            n = 2;
+            codePoint = b & 0x0F;
+        } else if ((b & 0xF8) == 0xF0) {
+            n = 3;
+            codePoint = b & 0x07;
+        } else {
+            throw error("Invalid byte 1 of 1-byte UTF-8 sequence");
+        }
+
+        if (!available(n + 1)) {
+            throw error("Invalid byte " + (limit - pos) + " of " + (n + 1) + "-byte UTF-8 sequence");
+        }
+
+        for (int i = 1; i <= n; i++) {
+            int c = buf[pos + i] & 0xFF;
+            if ((c & 0xC0) != 0x80) {
+                throw error("Invalid byte " + (i + 1) + " of " + (n + 1) + "-byte UTF-8 sequence");
+            }
+            codePoint = (codePoint << 6) | (c & 0x3F);
+        }
+        pos += n + 1;
+
+        if (Character.isBmpCodePoint(codePoint)) {
+            appendText((char) codePoint);
+        } else {
+            appendText(Character.highSurrogate(codePoint));
+            appendText(Character.lowSurrogate(codePoint));
+        }
+    }
+
+    private void appendText(char c) {
+        if (textLength == text.length) {
+            text = Arrays.copyOf(text, textLength * 2);
+        }
+        text[textLength++] = c;
+    }
+
+    /**
+     * Skips whitespace.
+     *
+     * @return whether any whitespace was skipped
+     */
+    private boolean skipWhiteSpace() throws IOException {
+        boolean skipped = false;
+
+        while ((pos < limit || more()) && isWhiteSpace(buf[pos])) {
+            if (buf[pos] == '\n') line++;
+            pos++;
+            skipped = true;
+        }
+
+        return skipped;
+    }
+
+    private static boolean isWhiteSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+    }
+
+    private void skipPast(String terminator) throws IOException, XMLStreamException {
+        int first = terminator.charAt(0);
+
+        while (true) {
+            if (!available(terminator.length())) {
+                throw error("Unexpected end of file, expected \"" + terminator + "\"");
+            }
+            if (buf[pos] == first && startsWith(terminator)) {
+                pos += terminator.length();
+                return;
+            }
+            if (buf[pos] == '\n') line++;
+            pos++;
+        }
+    }
+
+    private boolean startsWith(String s) throws IOException {
+        if (!available(s.length())) {
+            return false;
+        }
+
+        for (int i = 0; i < s.length(); i++) {
+            if (buf[pos + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean matches(int start, int length, String s) {
+        if (length != s.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (buf[start + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void expect(int c) throws IOException, XMLStreamException {
+        if (peek() != c) {
+            throw error("Expected '" + (char) c + "'");
+        }
+        pos++;
+    }
+
+    private int peek() throws IOException, XMLStreamException {
+        if (pos == limit && !more()) {
+            throw error("Unexpected end of file");
+        }
+        return buf[pos];
+    }
+
+    /**
+     * Ensures at least n bytes are available after pos.
+     */
+    private boolean available(int n) throws IOException {
+        while (limit - pos < n) {
+            if (!more()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads more bytes, keeping the bytes from the mark (or pos) onwards.
+     *
+     * Positions are shifted by the number of bytes discarded.
+     */
+    private boolean more() throws IOException {
+        if (eof) {
+            return false;
+        }
+
+        int keep = mark >= 0 ? mark : pos;
+
+        if (keep > 0) {
+            System.arraycopy(buf, keep, buf, 0, limit - keep);
+            limit -= keep;
+            pos -= keep;
+            if (mark >= 0) mark = 0;
+        }
+
+        if (limit == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+
+        int n = in.read(buf, limit, buf.length - limit);
+
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+
+        limit += n;
+        return true;
+    }
+
+    private XMLStreamException error(String message) {
+        return new XMLStreamException("ParseError at [row:" + line + "]\nMessage: " + message);
+    }
+
+    /**
+     * Attributes of the current start element.
+     *
+     * The values are kept as slices of a char buffer and only turned into
+     * Strings when requested.
+     */
+    private class ScannerAttributes implements ElementAttributes {
+
+        private String[] prefixes = new String[8];
+        private String[] localNames = new String[8];
+        private int[] valueStarts = new int[8];
+        private int[] valueEnds = new int[8];
+        private char[] values = new char[256];
+        private int valueLength = 0;
+        private int count = 0;
+
+        private int[] order = new int[8];
+        private int[] hashes = new int[8];
+
+        void clear() {
+            count = 0;
+            valueLength = 0;
+        }
+
+        void add(String prefix, String localName, char[] value, int length) {
+            if (count == prefixes.length) {
+                prefixes = Arrays.copyOf(prefixes, count * 2);
+                localNames = Arrays.copyOf(localNames, count * 2);
+                valueStarts = Arrays.copyOf(valueStarts, count * 2);
+                valueEnds = Arrays.copyOf(valueEnds, count * 2);
+                order = new int[count * 2];
+                hashes = new int[count * 2];
+            }
+            if (valueLength + length > values.length) {
+                values = Arrays.copyOf(values, Math.max(values.length * 2, valueLength + length));
+            }
+
+            System.arraycopy(value, 0, values, valueLength, length);
+
+            prefixes[count] = prefix;
+            localNames[count] = localName;
+            valueStarts[count] = valueLength;
+            valueEnds[count] = valueLength + length;
+            valueLength += length;
+            count++;
+        }
+
+        /**
+         * Puts the attributes in the order XMLEventReader returned them.
+         */
+        void resolve() throws XMLStreamException {
+            if (count < 2) {
+                order[0] = 0;
+                return;
+            }
+
+            for (int i = 0; i < count; i++) {
+                String uri = namespaceURI(prefixes[i]);
+                if (uri == null) {
+                    throw error("The prefix \"" + prefixes[i] + "\" for attribute \"" + prefixes[i] + ":" + localNames[i] + "\" is not bound");
+                }
+                hashes[i] = (prefixes[i].isEmpty() ? 0 : uri.hashCode()) ^ localNames[i].hashCode();
+            }
+
+            AttributeList.eventReaderOrder(hashes, count, order);
+        }
+
+        @Override
+        public int getAttributeCount() {
+            return count;
+        }
+
+        @Override
+        public String getAttributePrefix(int index) {
+            return prefixes[order[index]];
+        }
+
+        @Override
+        public String getAttributeLocalName(int index) {
+            return localNames[order[index]];
+        }
+
+        @Override
+        public String getAttributeValue(int index) {
+            int i = order[index];
+            return new String(values, valueStarts[i], valueEnds[i] - valueStarts[i]);
+        }
+    }
+
+    /**
+     * Open addressing cache of the Strings of byte slices.
+     */
+    private static class NameCache {
+
+        private byte[][] keys = new byte[256][];
+        private String[] values = new String[256];
+        private int size = 0;
+
+        String get(byte[] bytes, int start, int end) {
+            int slot = slot(keys, bytes, start, end);
+
+            if (keys[slot] != null) {
+                return values[slot];
+            }
+
+            String name = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+            keys[slot] = Arrays.copyOfRange(bytes, start, end);
+            values[slot] = name;
+
+            if (++size > keys.length / 2) {
+                rehash();
+            }
+
+            return name;
+        }
+
+        /**
+         * Returns the slot of the key or the empty slot it belongs in.
+         */
+        private static int slot(byte[][] keys, byte[] bytes, int start, int end) {
+            int hash = 1;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + bytes[i];
+            }
+
+            int mask = keys.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+
+            while (keys[slot] != null && !equals(keys[slot], bytes, start, end)) {
+                slot = (slot + 1) & mask;
+            }
+
+            return slot;
+        }
+
+        private static boolean equals(byte[] key, byte[] bytes, int start, int end) {
+            if (key.length != end - start) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != bytes[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void rehash() {
+            byte[][] oldKeys = keys;
+            String[] oldValues = values;
+
+            keys = new byte[oldKeys.length * 2][];
+            values = new String[oldKeys.length * 2];
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int slot = slot(keys, oldKeys[i], 0, oldKeys[i].length);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+}
@@ -1,21 +1,40 @@
 package com.bodastage.boda_bulkcmparser;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.jdt.annotation.Nullable;
 
 public class BulkOutputWriter implements Closeable {
 
+    private static final byte COMMA = ',';
+
+    /**
+     * A map of MO to its output files. Each MO's entry has its own lock, so
+     * threads writing different MOs do not wait for each other.
+     */
+    private final ConcurrentMap<String, Entry> outputVsDataTypePWMap = new ConcurrentHashMap<>();
+
     /**
-     * A map of MO to printwriter.
+     * Files of the handles created so far. A file is never shared by two
+     * handles, even when the MOs map to the same file name.
      */
-    private final GrowingHashMap<String, Entry> outputVsDataTypePWMap = new GrowingHashMap<>(Entry::new);
+    private final Set<File> claimedFiles = ConcurrentHashMap.newKeySet();
 
     /**
      * Separation character for file redirection.
@@ -27,89 +46,547 @@ public class BulkOutputWriter implements Closeable {
      */
     private final String outputDirectory;
 
+    /**
+     * Size of the output buffer of each csv file.
+     */
+    private final int bufferSize;
+
+    /**
+     * Open csv files.
+     */
+    private final OutputFilePool pool;
+
+    /**
+     * Formats and writes the rows on other threads, null unless async mode is on.
+     */
+    private volatile @Nullable AsyncRowWriter async;
+
+    /**
+     * Compresses the csv files, null unless compression is on. Shared with the
+     * fragment writers and closed by the writer which created them.
+     */
+    private volatile @Nullable OutputCompressor compressor;
+
+    /**
+     * Handles of a fragment writer in the order they were registered, null for
+     * a writer of csv files.
+     */
+    private final @Nullable List<Handle> fragments;
+
     public BulkOutputWriter(String collideDelim, String directoryName) {
+    	this(collideDelim, directoryName, CSVChannelWriter.DEFAULT_BUFFER_SIZE);
+    }
+
+    public BulkOutputWriter(String collideDelim, String directoryName, int bufferSize) {
+    	this(collideDelim, directoryName, bufferSize, OutputFilePool.DEFAULT_MAX_OPEN_FILES);
+    }
+
+    /**
+     * @param maxOpenFiles number of csv files kept open, the least recently written are closed and reopened when needed
+     */
+    public BulkOutputWriter(String collideDelim, String directoryName, int bufferSize, int maxOpenFiles) {
+    	this(collideDelim, directoryName, bufferSize, new OutputFilePool(maxOpenFiles), null, null);
+    }
+
+    private BulkOutputWriter(String collideDelim, String directoryName, int bufferSize, OutputFilePool pool, @Nullable OutputCompressor compressor, @Nullable List<Handle> fragments) {
+    	if (bufferSize < CSVChannelWriter.MIN_BUFFER_SIZE) {
+    		throw new IllegalArgumentException("Output buffer size must be at least " + CSVChannelWriter.MIN_BUFFER_SIZE + " bytes: " + bufferSize);
+    	}
+
     	this.collideDelmitier = collideDelim;
     	this.outputDirectory = directoryName;
+    	this.bufferSize = bufferSize;
+    	this.pool = pool;
+    	this.compressor = compressor;
+    	this.fragments = fragments;
+    }
+
+    /**
+     * Creates a writer which collects rows in numbered fragment files in the
+     * directory instead of csv files, to be appended to the csv files of this
+     * writer later by {@link #appendTo(BulkOutputWriter)}. Fragments have no
+     * header line. Their files are opened through the pool of this writer and
+     * compressed like its csv files.
+     */
+    public BulkOutputWriter fragments(File directory) {
+    	return new BulkOutputWriter(collideDelmitier, directory.getPath(), bufferSize, pool, compressor, Collections.synchronizedList(new ArrayList<>()));
+    }
+
+    public OutputFilePool getFilePool() {
+        return pool;
+    }
+
+    /**
+     * Turns on async mode, in which the rows written with
+     * {@link Handle#writeRow(CharSequence[], int)} are queued and formatted
+     * and written by a pool of threads. The rows of each file are written in
+     * the order they were queued. Has to be called before the first row is
+     * written.
+     *
+     * @param threads number of threads formatting and writing rows
+     * @param queueCapacity number of rows which can be queued, writers wait while the queue is full
+     */
+    public synchronized void setAsync(int threads, int queueCapacity) {
+        if (!outputVsDataTypePWMap.isEmpty() || async != null) {
+            throw new IllegalStateException("Async mode has to be set before writing");
+        }
+
+        async = new AsyncRowWriter(threads, queueCapacity);
+    }
+
+    public @Nullable AsyncRowWriter getAsync() {
+        return async;
+    }
+
+    /**
+     * Compresses the csv files, which get the compressor's extension after
+     * ".csv". The compressor buffers a block of each open file in place of
+     * the output buffer and is closed with this writer. Has to be called
+     * before the first row is written.
+     */
+    public synchronized void setCompression(OutputCompressor compressor) {
+        if (!outputVsDataTypePWMap.isEmpty() || this.compressor != null || fragments != null) {
+            throw new IllegalStateException("Compression has to be set before writing");
+        }
+
+        this.compressor = compressor;
+    }
+
+    public @Nullable OutputCompressor getCompression() {
+        return compressor;
+    }
+
+    /**
+     * Writes all rows, including the queued ones, to their files.
+     */
+    public void flush() throws IOException {
+        AsyncRowWriter async = this.async;
+        if (async != null) {
+            async.flush();
+        }
+
+        for (Handle handle : handles()) {
+            handle.flush();
+        }
     }
     
     /**
      * Writes to an XML file indexed by the provided object type and column headers.
+     *
+     * Looks up the output file on every call, see {@link #register(String, String)}
+     * for writing many rows with the same header.
      */
-    public synchronized void writeLine(String mo, String paramNames, String paramValues) {
-    	Entry entry = outputVsDataTypePWMap.grow(mo);
-    	BufferedWriter writer = entry.get(paramNames);
-    	
-        if (writer == null) {
-            File f = new File(outputDirectory, mo + ".csv");
-            int i = 0;
-            
-            while (f.exists()) {
-                System.out.printf("Warning: File %s already exists and will be truncated.\n", f.toString());
-
-                try (BufferedReader reader = new BufferedReader(new FileReader(f))) {
+    public void writeLine(String mo, String paramNames, String paramValues) {
+        register(mo, paramNames).write(paramValues);
+    }
+
+    /**
+     * Returns the handle rows of the MO with the given column headers are
+     * written with. The csv file is created and its header written the first
+     * time the MO and header are registered.
+     *
+     * Headers which only differ in case share a file. Only the MO is locked,
+     * so different MOs can be registered at the same time.
+     */
+    public Handle register(String mo, String paramNames) {
+    	Entry entry = outputVsDataTypePWMap.computeIfAbsent(mo, k -> new Entry());
+
+    	synchronized (entry) {
+    	    Handle handle = entry.get(paramNames);
+
+    	    if (handle == null) {
+    	        List<Handle> fragments = this.fragments;
+
+    	        if (fragments != null) {
+    	            handle = new Handle(mo, paramNames, new File(outputDirectory, fragments.size() + ".csv"), bufferSize, pool, async, compressor);
+    	            fragments.add(handle);
+    	            entry.set(paramNames, handle);
+    	        } else {
+    	            handle = new Handle(mo, paramNames, claimFile(mo, paramNames), bufferSize, pool, async, compressor);
+    	            entry.set(paramNames, handle);
+    	            handle.write(paramNames);
+    	        }
+    	    }
+
+    	    return handle;
+    	}
+    }
+
+    /**
+     * Picks the file of a new handle: the MO's file, unless it exists with
+     * another header or belongs to another handle.
+     */
+    private File claimFile(String mo, String paramNames) {
+        OutputCompressor compressor = this.compressor;
+        String extension = ".csv" + (compressor != null ? compressor.getExtension() : "");
+        File f = new File(outputDirectory, mo + extension);
+        int i = 0;
+
+        for (;;) {
+            boolean claimed = claimedFiles.add(f);
+
+            if (claimed && !f.exists()) {
+                break;
+            }
+
+            System.out.printf("Warning: File %s already exists and will be truncated.\n", f.toString());
+
+            if (claimed) {																				//Left by an earlier run
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(CompressedInput.open(f.getPath()), Charset.defaultCharset()))) {
                     String head = reader.readLine();
-                    
+
                     if (head != null && head.equalsIgnoreCase(paramNames)) {
                         System.out.printf("Warning: Headers matched, so continuing with the same file.\n", f.toString());
                         break;
                     }
                 } catch (IOException ignored) { }
 
-                f = new File(outputDirectory, mo + collideDelmitier + ++i + ".csv");
+                claimedFiles.remove(f);
             }
 
-            if (i > 0) {
-                System.out.printf("Warning: Redirected output to %s\n", f.toString());
-            }
+            f = new File(outputDirectory, mo + collideDelmitier + ++i + extension);
+        }
 
-            try {
-	            entry.set(paramNames, new BufferedWriter(new FileWriter(f, true)));
-	            entry.printLn(paramNames, paramNames);
-            } catch (IOException e) {
-            	e.printStackTrace();
-            }
+        if (i > 0) {
+            System.out.printf("Warning: Redirected output to %s\n", f.toString());
         }
 
-        entry.printLn(paramNames, paramValues);
+        return f;
     }
     
+    /**
+     * Waits for the queued rows to be written and closes the files.
+     */
     @Override
     public void close() throws IOException {
+        AsyncRowWriter async = this.async;
+        OutputCompressor compressor = this.compressor;
+
+        try {
+            if (async != null) {
+                async.close();
+            }
+        } finally {
+            try {
+                for (Entry entry : outputVsDataTypePWMap.values()) {
+                    entry.close();
+                }
+                outputVsDataTypePWMap.clear();
+                claimedFiles.clear();
+            } finally {
+                if (compressor != null && fragments == null) {
+                    compressor.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the fragment files and appends them to the csv files of the
+     * target, registering their MOs and headers with the target in the order
+     * they were registered here. The fragment files are deleted.
+     *
+     * Appending fragments in a fixed order gives the same files, redirections
+     * and rows as writing the rows to the target in that order.
+     */
+    public void appendTo(BulkOutputWriter target) throws IOException {
+        List<Handle> fragments = this.fragments;
+        if (fragments == null) {
+            throw new IllegalStateException("Not a fragment writer");
+        }
+
+        close();
+
+        for (Handle fragment : fragments) {
+            Handle handle = target.register(fragment.getMo(), fragment.getHeader());
+
+            if (fragment.getFile().exists()) {															//Not created if no row was written
+                handle.append(fragment.getFile());
+                fragment.getFile().delete();
+            }
+        }
+        fragments.clear();
+    }
+
+    private List<Handle> handles() {
+        List<Handle> handles = new ArrayList<>();
         for (Entry entry : outputVsDataTypePWMap.values()) {
-        	entry.close();
+            synchronized (entry) {
+                handles.addAll(entry.writers.values());
+            }
+        }
+        return handles;
+    }
+
+    /**
+     * Output file of the rows of an MO with a given header.
+     *
+     * Rows written through a handle go straight to its file without looking
+     * up the MO and header. The file is opened through the pool of open files
+     * and reopened in append mode when the pool closed it. Handles are safe to
+     * use from several threads.
+     */
+    public static final class Handle implements Closeable {
+
+        private final String mo;
+
+        private final String header;
+
+        private final File file;
+
+        private final int bufferSize;
+
+        private final OutputFilePool pool;
+
+        private final @Nullable AsyncRowWriter async;
+
+        private final @Nullable OutputCompressor compressor;
+
+        private @Nullable CSVChannelWriter writer;
+
+        /**
+         * Pool recency stamp of the last write.
+         */
+        long lastUsed;
+
+        /**
+         * Position in the pool's open files, -1 while the file is closed.
+         */
+        int poolIndex = -1;
+
+        /**
+         * Handle the pool evicted when this handle last opened its file.
+         * Read under the handle's lock, right after {@link #open()}.
+         */
+        private @Nullable Handle victim;
+
+        Handle(String mo, String header, File file, int bufferSize, OutputFilePool pool, @Nullable AsyncRowWriter async, @Nullable OutputCompressor compressor) {
+            this.mo = mo;
+            this.header = header;
+            this.file = file;
+            this.bufferSize = bufferSize;
+            this.pool = pool;
+            this.async = async;
+            this.compressor = compressor;
+        }
+
+        public String getMo() {
+            return mo;
+        }
+
+        public String getHeader() {
+            return header;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Writes a row already formatted as a csv line, without the line separator.
+         */
+        public void write(CharSequence line) {
+            Handle victim;
+
+            synchronized (this) {
+                CSVChannelWriter writer = open();
+                victim = this.victim;
+                try {
+                    writer.write(line);
+                    writer.newLine();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            evict(victim);
+        }
+
+        /**
+         * Writes a row of values which are already in csv format.
+         */
+        public void write(String[] values) {
+            Handle victim;
+
+            synchronized (this) {
+                CSVChannelWriter writer = open();
+                victim = this.victim;
+                try {
+                    for (int i = 0; i < values.length; i++) {
+                        if (i > 0) {
+                            writer.write(COMMA);
+                        }
+                        writer.write(values[i]);
+                    }
+                    writer.newLine();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            evict(victim);
+        }
+
+        /**
+         * Writes a row of values, escaping them for csv as they are written.
+         * Null values are left empty.
+         *
+         * In async mode the values are copied and the row is written later
+         * by the output threads.
+         *
+         * @param verbatim number of leading values which are written as they are
+         */
+        public void writeRow(@Nullable CharSequence[] values, int verbatim) {
+            AsyncRowWriter async = this.async;
+            if (async != null) {
+                async.submit(this, values, verbatim);
+                return;
+            }
+
+            Handle victim;
+
+            synchronized (this) {
+                CSVChannelWriter writer = open();
+                victim = this.victim;
+                try {
+                    writer.writeRow(values, verbatim);
+                    writer.newLine();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            evict(victim);
+        }
+
+        /**
+         * Writes rows already encoded in the platform charset, including their line separators.
+         */
+        public void write(byte[] bytes, int offset, int length) {
+            Handle victim;
+
+            synchronized (this) {
+                CSVChannelWriter writer = open();
+                victim = this.victim;
+                try {
+                    writer.write(bytes, offset, length);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            evict(victim);
+        }
+
+        /**
+         * Appends the content of a file, e.g. rows written to a fragment file.
+         * The file has to be compressed like the file of the handle.
+         */
+        public void append(File source) throws IOException {
+            Handle victim;
+
+            synchronized (this) {
+                CSVChannelWriter writer = open();
+                victim = this.victim;
+                try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                    writer.append(channel);
+                }
+            }
+
+            evict(victim);
+        }
+
+        /**
+         * Writes the buffered rows to the file, if it is open.
+         */
+        public synchronized void flush() throws IOException {
+            CSVChannelWriter writer = this.writer;
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            pool.remove(this);
+
+            CSVChannelWriter writer = this.writer;
+            this.writer = null;
+            if (writer != null) {
+                writer.close();
+            }
+        }
+
+        /**
+         * Returns the writer of the file, opening the file if the pool closed it.
+         */
+        private CSVChannelWriter open() {
+            lastUsed = pool.tick();
+            victim = null;
+
+            CSVChannelWriter writer = this.writer;
+            if (writer != null) {
+                pool.hit();
+                return writer;
+            }
+
+            victim = pool.add(this);
+
+            try {
+                FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                writer = compressor != null ? new CSVChannelWriter(compressor.open(channel), Charset.defaultCharset())
+                        : new CSVChannelWriter(channel, bufferSize, Charset.defaultCharset());
+            } catch (IOException e) {
+                pool.remove(this);
+                evict(victim);
+                throw new UncheckedIOException("Failed to open " + file, e);
+            }
+
+            this.writer = writer;
+            return writer;
+        }
+
+        /**
+         * Closes the file of a handle the pool evicted, unless it was reopened since.
+         * Called without holding the lock of another handle.
+         */
+        private static void evict(@Nullable Handle victim) {
+            if (victim == null) {
+                return;
+            }
+
+            synchronized (victim) {
+                CSVChannelWriter writer = victim.writer;
+
+                if (writer != null && !victim.pool.contains(victim)) {
+                    victim.writer = null;
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
         }
-        outputVsDataTypePWMap.clear();
     }
     
-    private class Entry implements Closeable {
+    private static final class Entry implements Closeable {
 
-    	private final Map<String, BufferedWriter> writers = new LinkedHashMap<>();
+    	private final Map<String, Handle> writers = new LinkedHashMap<>();
     	
 		@Override
-		public void close() throws IOException {
-			for (BufferedWriter writer : writers.values()) {
+		public synchronized void close() throws IOException {
+			for (Handle writer : writers.values()) {
 	        	writer.close();
 	        }
 		}
 		
-		void set(String headers, BufferedWriter writer) {
+		void set(String headers, Handle writer) {
 			writers.put(headers.toLowerCase(), writer);
 		}
 		
-		BufferedWriter get(String headers) {
-			headers = headers.toLowerCase();
-			return writers.containsKey(headers) ? writers.get(headers) : null;
+		Handle get(String headers) {
+			return writers.get(headers.toLowerCase());
 		}
-    	
-	    protected void printLn(String headers, String line) {
-	    	try {
-	    		BufferedWriter writer = get(headers);
-	    		writer.write(line);
-	    		writer.newLine();
-	        } catch (IOException e) {
-	            e.printStackTrace();
-	        }
-	    }
-
     }
 }
@@ -0,0 +1,433 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Writes csv lines to a file channel.
+ *
+ * Text is encoded straight into a reusable byte buffer which is written to the
+ * channel when it fills up. Values are escaped in the format of
+ * {@link CSVUtils#toCSVFormat(String)} while they are encoded, without
+ * scanning or copying them first. UTF-8 is encoded by hand, other charsets go
+ * through a {@link CharsetEncoder}. As with a {@link java.io.Writer},
+ * unmappable characters and lone surrogates are replaced.
+ *
+ * Without a channel the writer collects the bytes in memory, growing its
+ * buffer as needed, e.g. to encode rows on another thread than the one which
+ * writes them to the file.
+ *
+ * Written to a compressed channel, each full buffer is handed over as a
+ * block to compress, see {@link OutputCompressor}.
+ */
+public class CSVChannelWriter implements Closeable {
+
+    private static final byte COMMA = ',';
+
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Smallest buffer, large enough for any encoded character.
+     */
+    public static final int MIN_BUFFER_SIZE = 16;
+
+    private final @Nullable FileChannel channel;
+
+    private final OutputCompressor.@Nullable BlockChannel compressed;
+
+    private byte[] bytes;
+
+    private ByteBuffer buffer;
+
+    private int position = 0;
+
+    private final byte[] lineSeparator;
+
+    /**
+     * Encoder of charsets other than UTF-8.
+     */
+    private final @Nullable CharsetEncoder encoder;
+
+    private final StringBuilder escaped = new StringBuilder();
+
+    public CSVChannelWriter(@Nullable FileChannel channel, int bufferSize, Charset charset) {
+        this(channel, null, bufferSize, charset);
+    }
+
+    /**
+     * Creates a writer whose buffer holds a block of the compressed channel.
+     */
+    public CSVChannelWriter(OutputCompressor.BlockChannel compressed, Charset charset) {
+        this(compressed.getChannel(), compressed, compressed.getBlockSize(), charset);
+    }
+
+    private CSVChannelWriter(@Nullable FileChannel channel, OutputCompressor.@Nullable BlockChannel compressed, int bufferSize, Charset charset) {
+        if (bufferSize < MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Output buffer size must be at least " + MIN_BUFFER_SIZE + " bytes: " + bufferSize);
+        }
+
+        this.channel = channel;
+        this.compressed = compressed;
+        this.bytes = new byte[bufferSize];
+        this.buffer = ByteBuffer.wrap(bytes);
+        this.lineSeparator = System.lineSeparator().getBytes(charset);
+        this.encoder = StandardCharsets.UTF_8.equals(charset) ? null : charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Creates a writer which collects the bytes in memory.
+     */
+    public CSVChannelWriter(int initialSize, Charset charset) {
+        this(null, initialSize, charset);
+    }
+
+    /**
+     * Number of bytes in the buffer.
+     */
+    public int size() {
+        return position;
+    }
+
+    /**
+     * The buffer, holding {@link #size()} bytes.
+     */
+    public byte[] array() {
+        return bytes;
+    }
+
+    /**
+     * Discards the bytes in the buffer without writing them.
+     */
+    public void clear() {
+        position = 0;
+    }
+
+    /**
+     * Writes the text as it is.
+     */
+    public void write(CharSequence s) throws IOException {
+        if (encoder != null) {
+            encode(encoder, s);
+            return;
+        }
+
+        for (int i = 0, n = s.length(); i < n; i++) {
+            if (position > bytes.length - 4) {
+                drain();
+            }
+
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes[position++] = (byte) c;
+            } else {
+                i = encodeUTF8(s, i, c);
+            }
+        }
+    }
+
+    /**
+     * Writes a value, quoted if it contains a comma or a double quote.
+     */
+    public void writeCSV(CharSequence s) throws IOException {
+        int n = s.length();
+        int maxBytes = 3 * n + 2;																	//Doubled quotes take 2 bytes, other characters at most 3 per char
+
+        if (encoder != null || !reserve(maxBytes)) {
+            escaped.setLength(0);
+            CSVUtils.appendCSVFormat(escaped, s);
+            write(escaped);
+            return;
+        }
+
+        int start = position;
+        boolean quoted = false;
+
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+
+            if (c >= 0x80) {
+                i = encodeUTF8(s, i, c);
+                continue;
+            }
+
+            if (c == ',' || c == '"') {
+                if (!quoted) {																		//Open the quotes before the part already written
+                    System.arraycopy(bytes, start, bytes, start + 1, position - start);
+                    bytes[start] = '"';
+                    position++;
+                    quoted = true;
+                }
+                if (c == '"') {
+                    bytes[position++] = '"';
+                }
+            }
+
+            bytes[position++] = (byte) c;
+        }
+
+        if (quoted) {
+            bytes[position++] = '"';
+        }
+    }
+
+    /**
+     * Writes a row of values, escaping them for csv as they are written.
+     * Null values are left empty. The line separator is not written.
+     *
+     * @param verbatim number of leading values which are written as they are
+     */
+    public void writeRow(@Nullable CharSequence[] values, int verbatim) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                write(COMMA);
+            }
+
+            CharSequence value = values[i];
+            if (value == null) {
+                continue;
+            }
+
+            if (i < verbatim) {
+                write(value);
+            } else {
+                writeCSV(value);
+            }
+        }
+    }
+
+    /**
+     * Writes bytes which are already encoded.
+     */
+    public void write(byte[] b, int offset, int length) throws IOException {
+        FileChannel channel = this.channel;
+
+        if (!reserve(length) && channel != null) {													//Larger than the buffer, which is empty now
+            if (compressed != null) {
+                writeBlocks(b, offset, length);
+                return;
+            }
+
+            ByteBuffer direct = ByteBuffer.wrap(b, offset, length);
+            while (direct.hasRemaining()) {
+                channel.write(direct);
+            }
+            return;
+        }
+
+        System.arraycopy(b, offset, bytes, position, length);
+        position += length;
+    }
+
+    /**
+     * Cuts bytes larger than the buffer into blocks.
+     */
+    private void writeBlocks(byte[] b, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, bytes.length - position);
+
+            System.arraycopy(b, offset, bytes, position, n);
+            position += n;
+            offset += n;
+            length -= n;
+
+            if (position == bytes.length) {
+                drain();
+            }
+        }
+    }
+
+    /**
+     * Writes the content of a file, letting the channels transfer the bytes
+     * without copying them through the buffer where they can. The content of
+     * a file appended to a compressed channel has to be compressed the same
+     * way.
+     */
+    public void append(FileChannel source) throws IOException {
+        FileChannel channel = this.channel;
+
+        if (channel == null) {
+            ByteBuffer chunk = ByteBuffer.allocate(bytes.length);
+            while (source.read(chunk) > 0) {
+                write(chunk.array(), 0, chunk.position());
+                chunk.clear();
+            }
+            return;
+        }
+
+        flush();
+
+        long size = source.size();
+        for (long position = 0; position < size; ) {
+            long transferred = source.transferTo(position, size - position, channel);
+            if (transferred <= 0) {
+                throw new IOException("Could not append the rest of the file from byte " + position);
+            }
+            position += transferred;
+        }
+    }
+
+    /**
+     * Writes a single ASCII character.
+     */
+    public void write(byte c) throws IOException {
+        if (position == bytes.length) {
+            drain();
+        }
+        bytes[position++] = c;
+    }
+
+    public void newLine() throws IOException {
+        if (bytes.length - position < lineSeparator.length) {
+            drain();
+        }
+        System.arraycopy(lineSeparator, 0, bytes, position, lineSeparator.length);
+        position += lineSeparator.length;
+    }
+
+    /**
+     * Writes the buffered bytes to the channel.
+     */
+    public void flush() throws IOException {
+        if (channel != null) {
+            drain();
+        }
+        if (compressed != null) {
+            compressed.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        FileChannel channel = this.channel;
+        OutputCompressor.BlockChannel compressed = this.compressed;
+
+        if (compressed != null) {
+            try {
+                drain();
+            } finally {
+                compressed.close();
+            }
+        } else if (channel != null) {
+            try {
+                drain();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Encodes the character at i, which is not ASCII, and returns the index of
+     * its last char. There must be room for 4 bytes.
+     */
+    private int encodeUTF8(CharSequence s, int i, char c) {
+        if (c < 0x800) {
+            bytes[position++] = (byte) (0xc0 | (c >> 6));
+            bytes[position++] = (byte) (0x80 | (c & 0x3f));
+        } else if (!Character.isSurrogate(c)) {
+            bytes[position++] = (byte) (0xe0 | (c >> 12));
+            bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            bytes[position++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(++i));
+            bytes[position++] = (byte) (0xf0 | (cp >> 18));
+            bytes[position++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            bytes[position++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            bytes[position++] = (byte) (0x80 | (cp & 0x3f));
+        } else {
+            bytes[position++] = '?';
+        }
+        return i;
+    }
+
+    private void encode(CharsetEncoder encoder, CharSequence s) throws IOException {
+        CharBuffer in = CharBuffer.wrap(s);
+
+        encoder.reset();
+        buffer.limit(bytes.length).position(position);
+
+        for (;;) {
+            CoderResult result = encoder.encode(in, buffer, true);
+            if (result.isOverflow()) {
+                position = buffer.position();
+                drain();
+                buffer.limit(bytes.length).position(position);
+            } else {
+                break;
+            }
+        }
+
+        while (encoder.flush(buffer).isOverflow()) {
+            position = buffer.position();
+            drain();
+            buffer.limit(bytes.length).position(position);
+        }
+
+        position = buffer.position();
+    }
+
+    /**
+     * Makes room for length bytes in the buffer. Returns false if they do
+     * not fit into the buffer of a channel.
+     */
+    private boolean reserve(int length) throws IOException {
+        if (bytes.length - position >= length) {
+            return true;
+        }
+
+        if (channel == null) {
+            grow(position + length);
+            return true;
+        }
+
+        drain();
+        return bytes.length >= length;
+    }
+
+    /**
+     * Writes the buffered bytes to the channel, or grows the buffer of a
+     * writer without a channel. A compressed channel takes the buffer as a
+     * block and gives back another buffer.
+     */
+    private void drain() throws IOException {
+        FileChannel channel = this.channel;
+        OutputCompressor.BlockChannel compressed = this.compressed;
+
+        if (compressed != null) {
+            bytes = compressed.write(bytes, position);
+            buffer = ByteBuffer.wrap(bytes);
+            position = 0;
+            return;
+        }
+
+        if (channel == null) {
+            grow(bytes.length + 1);
+            return;
+        }
+
+        buffer.limit(position).position(0);
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        position = 0;
+    }
+
+    private void grow(int capacity) {
+        bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        buffer = ByteBuffer.wrap(bytes);
+    }
+}
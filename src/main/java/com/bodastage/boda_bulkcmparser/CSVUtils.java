@@ -1,9 +1,8 @@
 package com.bodastage.boda_bulkcmparser;
 
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Stack;
 
 public class CSVUtils {
 
@@ -20,8 +19,45 @@ public class CSVUtils {
         return s;
     }
 
-    public static List<String> sortedColumns(Stack<String> unsorted) {
-        List<String> sss = Arrays.asList(unsorted.toArray(new String[unsorted.size()]));
+    /**
+     * Appends the value to the builder in the format of {@link #toCSVFormat(String)}.
+     */
+    public static void appendCSVFormat(StringBuilder sb, CharSequence s) {
+        boolean comma = false;
+        boolean quote = false;
+
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c == ',') {
+                comma = true;
+            } else if (c == '"') {
+                quote = true;
+                break;
+            }
+        }
+
+        if (!comma && !quote) {
+            sb.append(s);
+            return;
+        }
+
+        sb.append('"');
+        if (quote) {
+            for (int i = 0, n = s.length(); i < n; i++) {
+                char c = s.charAt(i);
+                if (c == '"') {
+                    sb.append('"');
+                }
+                sb.append(c);
+            }
+        } else {
+            sb.append(s);
+        }
+        sb.append('"');
+    }
+
+    public static List<String> sortedColumns(ColumnSet unsorted) {
+        List<String> sss = new ArrayList<>(unsorted.asList());
 
         sss.sort(Comparator.<String>naturalOrder());
 
@@ -0,0 +1,99 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Insertion ordered set of the columns of an MO.
+ *
+ * Each column keeps the index it was added at, so rows can address their
+ * values by column index. Lookups are hashed.
+ */
+public class ColumnSet implements Iterable<String> {
+
+    private final List<String> columns = new ArrayList<>();
+
+    private final Map<String, Integer> indices = new HashMap<>();
+
+    public ColumnSet() {
+    }
+
+    public ColumnSet(String[] columns) {
+        for (String column : columns) {
+            add(column);
+        }
+    }
+
+    /**
+     * Adds the column if it is not in the set yet.
+     *
+     * @return the index of the column
+     */
+    public int add(String column) {
+        Integer index = indices.get(column);
+
+        if (index == null) {
+            index = columns.size();
+            columns.add(column);
+            indices.put(column, index);
+        }
+
+        return index;
+    }
+
+    public void addAll(Collection<String> columns) {
+        for (String column : columns) {
+            add(column);
+        }
+    }
+
+    /**
+     * Adds the parameter names of the row values.
+     */
+    public void addAll(RowValues values) {
+        for (int i = 0; i < values.size(); i++) {
+            add(values.getName(i));
+        }
+    }
+
+    /**
+     * Returns the index of the column, or -1 if it is not in the set.
+     */
+    public int indexOf(String column) {
+        Integer index = indices.get(column);
+        return index == null ? -1 : index;
+    }
+
+    public boolean contains(String column) {
+        return indices.containsKey(column);
+    }
+
+    public String get(int index) {
+        return columns.get(index);
+    }
+
+    public int size() {
+        return columns.size();
+    }
+
+    public boolean isEmpty() {
+        return columns.isEmpty();
+    }
+
+    /**
+     * The columns in index order.
+     */
+    public List<String> asList() {
+        return Collections.unmodifiableList(columns);
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return asList().iterator();
+    }
+}
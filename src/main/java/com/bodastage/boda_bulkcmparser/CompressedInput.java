@@ -0,0 +1,190 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.zip.GZIPInputStream;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Opens input files which may be compressed. The compression is detected by
+ * the magic bytes at the start of the file, not by the file name, and the
+ * file is decompressed while it is read.
+ *
+ * <ul>
+ * <li>gzip: decompressed with java.util.zip, all members of files made of several gzip members are read</li>
+ * <li>bzip2: needs org.apache.commons:commons-compress on the classpath</li>
+ * <li>xz: needs org.apache.commons:commons-compress and org.tukaani:xz on the classpath</li>
+ * <li>zstd: needs com.github.luben:zstd-jni on the classpath</li>
+ * </ul>
+ *
+ * Other files are read as they are. Large files are read through memory
+ * mapped windows, see {@link MappedInput}.
+ */
+public final class CompressedInput {
+
+    public static final String GZIP = "gzip";
+    public static final String BZIP2 = "bzip2";
+    public static final String XZ = "xz";
+    public static final String ZSTD = "zstd";
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final byte[] GZIP_MAGIC = {0x1f, (byte) 0x8b};
+    private static final byte[] BZIP2_MAGIC = {'B', 'Z', 'h'};
+    private static final byte[] XZ_MAGIC = {(byte) 0xfd, '7', 'z', 'X', 'Z', 0};
+    private static final byte[] ZSTD_MAGIC = {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd};
+
+    private static final int MAGIC_SIZE = XZ_MAGIC.length;
+
+    private static final String BZIP2_STREAM = "org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream";
+    private static final String XZ_STREAM = "org.apache.commons.compress.compressors.xz.XZCompressorInputStream";
+    private static final String ZSTD_STREAM = "com.github.luben.zstd.ZstdInputStream";
+
+    private CompressedInput() {
+    }
+
+    /**
+     * Opens the file, decompressing it if it is compressed.
+     */
+    public static InputStream open(String filename) throws IOException {
+        InputStream in = MappedInput.open(filename);
+
+        try {
+            return decompress(in);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a stream which decompresses the input if it is compressed.
+     */
+    public static InputStream decompress(InputStream in) throws IOException {
+        InputStream buffered = in instanceof MappedInput ? in : new BufferedInputStream(in, BUFFER_SIZE);	//Mapped files need no buffer to peek at the magic bytes
+        String format = detect(buffered);
+
+        if (format == null) {
+            return buffered;
+        }
+
+        switch (format) {
+            case GZIP:
+                return new GZIPInputStream(new ReportsAvailable(buffered), BUFFER_SIZE);
+            case BZIP2:
+                return decompress(BZIP2, BZIP2_STREAM, buffered);
+            case ZSTD:
+                return zstd(buffered);
+            default:
+                return decompress(XZ, XZ_STREAM, buffered);
+        }
+    }
+
+    /**
+     * The compression of the file, null if it is not compressed.
+     */
+    @Nullable
+    public static String detect(String filename) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(filename), MAGIC_SIZE)) {
+            return detect(in);
+        }
+    }
+
+    /**
+     * Peeks at the first bytes of the stream, which must support mark.
+     */
+    @Nullable
+    private static String detect(InputStream in) throws IOException {
+        byte[] magic = new byte[MAGIC_SIZE];
+        int length = 0;
+
+        in.mark(MAGIC_SIZE);
+        try {
+            int n;
+            while (length < MAGIC_SIZE && (n = in.read(magic, length, MAGIC_SIZE - length)) >= 0) {
+                length += n;
+            }
+        } finally {
+            in.reset();
+        }
+
+        if (startsWith(magic, length, GZIP_MAGIC)) {
+            return GZIP;
+        } else if (startsWith(magic, length, BZIP2_MAGIC)) {
+            return BZIP2;
+        } else if (startsWith(magic, length, XZ_MAGIC)) {
+            return XZ;
+        } else if (startsWith(magic, length, ZSTD_MAGIC)) {
+            return ZSTD;
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] bytes, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a commons-compress stream which reads concatenated streams to the end.
+     */
+    private static InputStream decompress(String format, String className, InputStream in) throws IOException {
+        try {
+            return (InputStream) Class.forName(className).getConstructor(InputStream.class, boolean.class).newInstance(in, true);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Cannot read " + format + " input: " + e.getCause(), e.getCause());
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new IOException("Reading " + format + " input needs commons-compress" + (XZ.equals(format) ? " and xz" : "") + " on the classpath: " + e);
+        }
+    }
+
+    /**
+     * Creates a zstd-jni stream, which reads all frames of the input.
+     */
+    private static InputStream zstd(InputStream in) throws IOException {
+        try {
+            return (InputStream) Class.forName(ZSTD_STREAM).getConstructor(InputStream.class).newInstance(in);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Cannot read " + ZSTD + " input: " + e.getCause(), e.getCause());
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new IOException("Reading " + ZSTD + " input needs zstd-jni on the classpath: " + e);
+        }
+    }
+
+    /**
+     * GZIPInputStream only looks for a further member after the end of a
+     * member if the stream reports available bytes, which streams other than
+     * files may not do. The end of the input is then found when no member
+     * header can be read.
+     */
+    private static final class ReportsAvailable extends FilterInputStream {
+
+        ReportsAvailable(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.max(1, in.available());
+        }
+    }
+}
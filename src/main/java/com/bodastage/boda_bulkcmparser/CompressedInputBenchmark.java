@@ -0,0 +1,140 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares the end-to-end time of parsing a compressed file as it is
+ * decompressed with decompressing it to disk first and parsing the
+ * decompressed file.
+ *
+ * The workflows are:
+ * <ul>
+ * <li>decompress: the file is decompressed to outputDirectory, then parsed and deleted</li>
+ * <li>stream: the compressed file is parsed directly</li>
+ * </ul>
+ *
+ * The decompressed file is usually still in the page cache when it is
+ * parsed, so for files larger than the memory the decompress workflow is
+ * slower than measured here.
+ *
+ * Usage: CompressedInputBenchmark file.xml.gz outputDirectory [-S] [-runs=N] [-workflow=decompress,stream]
+ */
+public class CompressedInputBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: CompressedInputBenchmark <file.xml.gz|bz2|xz> <outputDirectory> [-S] [-runs=N] [-workflow=decompress,stream]");
+            System.exit(1);
+        }
+
+        String file = args[0];
+        File directory = new File(args[1]);
+        boolean singlePass = false;
+        int runs = 3;
+        List<String> workflows = Arrays.asList("decompress", "stream");
+
+        for (String arg : Arrays.asList(args).subList(2, args.length)) {
+            if (arg.equals("-S")) {
+                singlePass = true;
+            } else if (arg.startsWith("-runs=")) {
+                runs = Integer.parseInt(arg.substring("-runs=".length()));
+            } else if (arg.startsWith("-workflow=")) {
+                workflows = Arrays.asList(arg.substring("-workflow=".length()).split(","));
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        String compression = CompressedInput.detect(file);
+        double compressedMegabytes = new File(file).length() / (1024.0 * 1024.0);
+        double megabytes = decompressedSize(file) / (1024.0 * 1024.0);
+
+        System.out.println(String.format("%s: %.1f MB %s, %.1f MB decompressed, %s, %d runs",
+                file, compressedMegabytes, compression == null ? "not compressed" : compression, megabytes, singlePass ? "single pass" : "two passes", runs));
+        System.out.println(String.format("%-12s %10s %10s %16s", "workflow", "best ms", "MB/s", "disk MB written"));
+
+        for (String workflow : workflows) {
+            run(file, directory, workflow, singlePass);                                         //Warm up
+
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < runs; i++) {
+                best = Math.min(best, run(file, directory, workflow, singlePass));
+            }
+
+            System.out.println(String.format("%-12s %10d %10.1f %16.1f",
+                    workflow, best / 1000000, megabytes / (best / 1e9), workflow.equals("decompress") ? megabytes : 0.0));
+        }
+    }
+
+    /**
+     * Runs the workflow and returns the time taken in nanoseconds.
+     */
+    private static long run(String file, File directory, String workflow, boolean singlePass) throws Exception {
+        File output = new File(directory, "csv");
+        File decompressed = new File(directory, "decompressed.xml");
+
+        IOUtils.deleteRecursively(output);
+        if (!output.mkdirs()) {
+            throw new IOException("Cannot create " + output);
+        }
+
+        PrintStream console = System.out;
+        long start = System.nanoTime();
+
+        try {
+            String input;
+
+            if (workflow.equals("decompress")) {
+                try (InputStream in = CompressedInput.open(file)) {
+                    Files.copy(in, decompressed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                input = decompressed.getPath();
+            } else if (workflow.equals("stream")) {
+                input = file;
+            } else {
+                throw new IllegalArgumentException("Unknown workflow " + workflow);
+            }
+
+            System.setOut(new PrintStream(new OutputStream() {                                 //Leave out the progress messages of the parser
+                @Override
+                public void write(int b) {
+                }
+            }));
+
+            try (BodaBulkCMParser parser = new BodaBulkCMParser(new BulkOutputWriter("_", output.getAbsolutePath()))) {
+                parser.setSinglePass(singlePass);
+                parser.parse(input);
+            }
+
+            return System.nanoTime() - start;
+        } finally {
+            System.setOut(console);
+            decompressed.delete();
+        }
+    }
+
+    private static long decompressedSize(String file) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        long size = 0;
+
+        try (InputStream in = CompressedInput.open(file)) {
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                size += n;
+            }
+        }
+
+        return size;
+    }
+}
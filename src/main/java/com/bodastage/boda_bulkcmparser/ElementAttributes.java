@@ -0,0 +1,20 @@
+package com.bodastage.boda_bulkcmparser;
+
+/**
+ * Index based access to the attributes of the current start element.
+ *
+ * The attributes are only valid until the start element handler returns.
+ */
+public interface ElementAttributes {
+
+    int getAttributeCount();
+
+    /**
+     * Returns the attribute prefix or an empty string.
+     */
+    String getAttributePrefix(int index);
+
+    String getAttributeLocalName(int index);
+
+    String getAttributeValue(int index);
+}
@@ -0,0 +1,273 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact binary record of the XML events of a file.
+ *
+ * The events are recorded while the file is parsed in the parameter extraction
+ * stage and replayed in the value extraction stage instead of parsing the XML
+ * again. Element and attribute names are kept in a symbol table and written as
+ * ids. Namespace URIs and declarations are not recorded.
+ */
+public class EventLog implements Closeable {
+
+    /**
+     * Compression level for an uncompressed log.
+     */
+    public static final int NO_COMPRESSION = Deflater.NO_COMPRESSION;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final byte START_ELEMENT = 1;
+    private static final byte END_ELEMENT = 2;
+    private static final byte CHARACTERS = 3;
+    private static final byte SPACE = 4;
+    private static final byte END_OF_LOG = 0;
+
+    private final File file;
+
+    private final int compressionLevel;
+
+    private DataOutputStream out;
+
+    /**
+     * Ids of the names and whitespace strings written to the log.
+     */
+    private final Map<String, Integer> symbols = new HashMap<>();
+
+    private byte[] bytes = new byte[1024];
+
+    private CharBuffer chars = CharBuffer.allocate(1024);
+
+    public EventLog(File directory, int compressionLevel) throws IOException {
+        this.compressionLevel = compressionLevel;
+
+        file = File.createTempFile("boda-bulkcmparser-", ".events", directory);
+        file.deleteOnExit();
+
+        OutputStream os = new FileOutputStream(file);
+        if (compressionLevel != NO_COMPRESSION) {
+            os = new DeflaterOutputStream(os, new Deflater(compressionLevel), BUFFER_SIZE);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(os, BUFFER_SIZE));
+    }
+
+    public long size() {
+        return file.length();
+    }
+
+    public void writeStartElement(String prefix, String localName, ElementAttributes attributes) throws IOException {
+        out.writeByte(START_ELEMENT);
+        writeName(prefix, localName);
+
+        int count = attributes.getAttributeCount();
+        IOUtils.writeVarInt(out, count);
+
+        for (int i = 0; i < count; i++) {
+            writeName(attributes.getAttributePrefix(i), attributes.getAttributeLocalName(i));
+            IOUtils.writeString(out, attributes.getAttributeValue(i));
+        }
+    }
+
+    public void writeCharacters(char[] text, int start, int length) throws IOException {
+        if (AbstractFileParser.isWhiteSpace(text, start, length)) {
+            out.writeByte(SPACE);
+            writeSymbol(new String(text, start, length));                                       //Indentation repeats, so it goes into the symbol table
+        } else {
+            out.writeByte(CHARACTERS);
+            writeChars(text, start, length);
+        }
+    }
+
+    public void writeEndElement(String prefix, String localName) throws IOException {
+        out.writeByte(END_ELEMENT);
+        writeName(prefix, localName);
+    }
+
+    /**
+     * Completes the log. No more events can be written afterwards.
+     */
+    public void finish() throws IOException {
+        out.writeByte(END_OF_LOG);
+        out.close();
+        out = null;
+    }
+
+    /**
+     * Passes the recorded events to the parser's event handlers.
+     */
+    public void replay(AbstractFileParser parser) throws IOException {
+        List<String[]> replayNames = new ArrayList<>();
+        AttributeList replayAttributes = new AttributeList();
+
+        InputStream is = new FileInputStream(file);
+        if (compressionLevel != NO_COMPRESSION) {
+            is = new InflaterInputStream(is, new Inflater(), BUFFER_SIZE);
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(is, BUFFER_SIZE))) {
+            for (byte type = in.readByte(); type != END_OF_LOG; type = in.readByte()) {
+                switch (type) {
+                    case START_ELEMENT: {
+                        String[] name = readName(in, replayNames);
+
+                        replayAttributes.clear();
+                        for (int n = IOUtils.readVarInt(in); n > 0; n--) {
+                            String[] attrName = readName(in, replayNames);
+                            replayAttributes.add(attrName[0], attrName[1], IOUtils.readString(in));
+                        }
+
+                        parser.onStartElement(name[0], name[1], replayAttributes);
+                        break;
+                    }
+                    case CHARACTERS:
+                        readChars(in);
+                        parser.onCharacters(chars.array(), 0, chars.limit());
+                        break;
+                    case SPACE: {
+                        String text = readName(in, replayNames)[0];
+
+                        if (chars.capacity() < text.length()) {
+                            chars = CharBuffer.allocate(text.length());
+                        }
+                        text.getChars(0, text.length(), chars.array(), 0);
+
+                        parser.onCharacters(chars.array(), 0, text.length());
+                        break;
+                    }
+                    case END_ELEMENT: {
+                        String[] name = readName(in, replayNames);
+                        parser.onEndElement(name[0], name[1]);
+                        break;
+                    }
+                    default:
+                        throw new IOException("Corrupt event log " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the log.
+     */
+    @Override
+    public void close() {
+        IOUtils.closeQuietly(out);
+        out = null;
+        file.delete();
+    }
+
+    private void writeName(String prefix, String localName) throws IOException {
+        writeSymbol(prefix + '\u0000' + localName);
+    }
+
+    private void writeSymbol(String symbol) throws IOException {
+        Integer id = symbols.get(symbol);
+
+        if (id != null) {
+            IOUtils.writeVarInt(out, id);
+            return;
+        }
+
+        IOUtils.writeVarInt(out, symbols.size());
+        IOUtils.writeString(out, symbol);
+        symbols.put(symbol, symbols.size());
+    }
+
+    /**
+     * Writes text as length prefixed UTF-8 without creating a String. Each char
+     * is encoded on its own, surrogates included, so a surrogate pair split
+     * across two chunks of characters is replayed as it was written.
+     */
+    private void writeChars(char[] text, int start, int length) throws IOException {
+        if (bytes.length < length * 3) {
+            bytes = new byte[length * 3];
+        }
+
+        int n = 0;
+        for (int i = start, end = start + length; i < end; i++) {
+            char c = text[i];
+
+            if (c < 0x80) {
+                bytes[n++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[n++] = (byte) (0xC0 | (c >> 6));
+                bytes[n++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                bytes[n++] = (byte) (0xE0 | (c >> 12));
+                bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[n++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        IOUtils.writeVarInt(out, n);
+        out.write(bytes, 0, n);
+    }
+
+    /**
+     * Reads text written by {@link #writeChars(char[], int, int)} into the chars buffer.
+     */
+    private void readChars(DataInputStream in) throws IOException {
+        int length = IOUtils.readVarInt(in);
+
+        if (bytes.length < length) {
+            bytes = new byte[length];
+        }
+        if (chars.capacity() < length) {
+            chars = CharBuffer.allocate(length);
+        }
+
+        in.readFully(bytes, 0, length);
+
+        char[] text = chars.array();
+        int n = 0;
+        for (int i = 0; i < length; n++) {
+            int b = bytes[i++];
+
+            if (b >= 0) {
+                text[n] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                text[n] = (char) (((b & 0x1F) << 6) | (bytes[i++] & 0x3F));
+            } else {
+                text[n] = (char) (((b & 0x0F) << 12) | ((bytes[i++] & 0x3F) << 6) | (bytes[i++] & 0x3F));
+            }
+        }
+
+        chars.clear();
+        chars.limit(n);
+    }
+
+    /**
+     * Reads a name symbol and splits it into prefix and local name.
+     * Whitespace symbols are returned as is.
+     */
+    private static String[] readName(DataInputStream in, List<String[]> replayNames) throws IOException {
+        int id = IOUtils.readVarInt(in);
+
+        if (id == replayNames.size()) {
+            replayNames.add(IOUtils.readString(in).split("\u0000", -1));
+        }
+
+        return replayNames.get(id);
+    }
+}
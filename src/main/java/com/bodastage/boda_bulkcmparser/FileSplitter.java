@@ -0,0 +1,565 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Splits a Bulk CM file into parts which can be parsed on their own.
+ *
+ * A byte scan follows the nesting of the elements and splits the file at the
+ * start tags of MeContext and ManagedElement elements which are not inside
+ * another MeContext or ManagedElement, once a part has reached the requested
+ * size. Within a MeContext only the nesting depth is followed.
+ *
+ * Each part is parsed as a document of its own, made of:
+ * <ul>
+ * <li>the prolog of the file and the start tags of the elements enclosing the
+ * part, each followed by the xn:attributes elements it had before the part,
+ * so the parent IDs and the attributes of the enclosing MOs are known</li>
+ * <li>the bytes of the part</li>
+ * <li>an {@link #END_MARKER} element and the end tags of the elements which
+ * are still open at the end of the part</li>
+ * </ul>
+ * The parser ignores the events after the marker, so an MO is only written by
+ * the part holding its end tag.
+ *
+ * Files in encodings which are not ASCII compatible, and files the scan does
+ * not understand, are not split.
+ */
+public class FileSplitter {
+
+    /**
+     * Name of the element marking the end of the bytes of a part.
+     */
+    public static final String END_MARKER = "boda-bulkcmparser-split";
+
+    public static final long DEFAULT_PART_SIZE = 64L << 20;
+
+    private static final byte[] END_MARKER_TAG = ("<" + END_MARKER + "/>").getBytes(StandardCharsets.US_ASCII);
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final String filename;
+
+    private final FileChannel channel;
+
+    private final long partSize;
+
+    private final Consumer<Part> consumer;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private final byte[] buf = buffer.array();
+
+    /**
+     * File position of buf[0].
+     */
+    private long offset = 0;
+
+    private int pos = 0;
+
+    private int limit = 0;
+
+    private final byte[] name = new byte[256];
+
+    /**
+     * Elements open at the current position, up to the MeContext or
+     * xn:attributes element being skipped.
+     */
+    private final List<Element> open = new ArrayList<>();
+
+    /**
+     * Nesting depth within the MeContext or xn:attributes element being
+     * skipped, 0 when no element is skipped.
+     */
+    private int skippedDepth = 0;
+
+    /**
+     * Start of the xn:attributes element being skipped, -1 when a MeContext is skipped.
+     */
+    private long attributesStart = -1;
+
+    private long rootStart = -1;
+
+    private int index = 0;
+
+    private long partStart = 0;
+
+    /**
+     * Elements enclosing the current part, null for the first part.
+     */
+    private @Nullable List<Element> partAncestors = null;
+
+    private FileSplitter(String filename, FileChannel channel, long partSize, Consumer<Part> consumer) {
+        this.filename = filename;
+        this.channel = channel;
+        this.partSize = partSize;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Splits a file into parts of at least partSize bytes and passes them to
+     * the consumer as they are found, in file order. A file which is not
+     * split, such as a compressed file or an archive, is passed as a single
+     * part which is the whole file.
+     */
+    public static void split(String filename, long partSize, Consumer<Part> consumer) throws IOException {
+        long length = new File(filename).length();
+
+        if (partSize <= 0 || length <= partSize || CompressedInput.detect(filename) != null || InputArchive.isArchive(filename)) {
+            consumer.accept(new Part(filename));
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            FileSplitter splitter = new FileSplitter(filename, channel, partSize, consumer);
+
+            if (!splitter.scan()) {
+                consumer.accept(new Part(filename));
+            }
+        }
+    }
+
+    /**
+     * Scans the file, passing the parts to the consumer. Returns false
+     * without passing any part if the file cannot be split.
+     */
+    private boolean scan() throws IOException {
+        if (!fill() || buf[0] == 0 || buf[0] == (byte) 0xFE || buf[0] == (byte) 0xFF || (limit > 1 && buf[1] == 0)) {
+            return false;																			//UTF-16 or UTF-32
+        }
+
+        try {
+            while (skipTo('<')) {
+                long tagStart = position() - 1;
+                int c = read();
+
+                if (c == '/') {
+                    endElement();
+                } else if (c == '?') {
+                    skipPast('?', '>');
+                } else if (c == '!') {
+                    skipDeclaration();
+                } else {
+                    startElement(tagStart, c);
+                }
+            }
+        } catch (EOFException | IllegalStateException e) {
+            //Once parts have been passed on, the rest of the file is the last part and the parser reports the error
+        }
+
+        if (index == 0) {
+            return false;
+        }
+
+        emit(channel.size(), new byte[0]);
+        return true;
+    }
+
+    private void startElement(long tagStart, int first) throws IOException {
+        if (skippedDepth > 0 && attributesStart < 0) {											//Inside a MeContext
+            if (!skipTag(first)) {
+                skippedDepth++;
+            }
+            return;
+        }
+
+        int length = 0;
+        int c = first;
+        while (c != '>' && c != '/' && c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+            if (length == name.length) {
+                throw new IllegalStateException("Element name too long");
+            }
+            name[length++] = (byte) c;
+            c = read();
+        }
+
+        boolean empty = c == '/' ? read() == '>' : c != '>' && skipTag(c);
+        byte[] qName = Arrays.copyOf(name, length);
+        String localName = localName(qName);
+
+        if (skippedDepth > 0) {																	//Inside xn:attributes
+            if (isVendorSpecific(localName)) {
+                open.get(open.size() - 1).vendorSpecific = true;
+            }
+            if (!empty) {
+                skippedDepth++;
+            }
+            return;
+        }
+
+        if (rootStart < 0) {
+            rootStart = tagStart;
+        }
+
+        boolean managedElement = localName.equalsIgnoreCase("MeContext") || localName.equalsIgnoreCase("ManagedElement");
+
+        if (managedElement && tagStart - partStart >= partSize && canSplit()) {
+            split(tagStart);
+        }
+
+        if (empty) {
+            return;
+        }
+
+        if (managedElement) {
+            skippedDepth = 1;
+            attributesStart = -1;
+        } else if (localName.equals("attributes") && !open.isEmpty()) {
+            skippedDepth = 1;
+            attributesStart = tagStart;
+        } else {
+            Element element = new Element(qName, tagStart, (int) (position() - tagStart));
+            element.vendorSpecific = isVendorSpecific(localName);
+            open.add(element);
+        }
+    }
+
+    /**
+     * Vendor specific data is written while it is parsed rather than at the
+     * end of its MO, so the file is not split within it, nor within an MO
+     * which has vendor specific data in its xn:attributes.
+     */
+    private boolean canSplit() {
+        for (Element element : open) {
+            if (element.vendorSpecific) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isVendorSpecific(String localName) {
+        return localName.equalsIgnoreCase("VsDataContainer") || localName.startsWith("vsData");
+    }
+
+    private void endElement() throws IOException {
+        skipTo('>');
+
+        if (skippedDepth > 0) {
+            if (--skippedDepth == 0 && attributesStart >= 0) {
+                open.get(open.size() - 1).attributes.add(new long[] {attributesStart, position()});
+            }
+            return;
+        }
+
+        if (open.isEmpty()) {
+            throw new IllegalStateException("Unbalanced end tag");
+        }
+        open.remove(open.size() - 1);
+    }
+
+    /**
+     * Ends the current part before the start tag at the position.
+     */
+    private void split(long position) throws IOException {
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        tail.write(END_MARKER_TAG);
+
+        for (int i = open.size() - 1; i >= 0; i--) {
+            tail.write('<');
+            tail.write('/');
+            tail.write(open.get(i).qName);
+            tail.write('>');
+        }
+
+        emit(position, tail.toByteArray());
+
+        List<Element> ancestors = new ArrayList<>();
+        for (Element element : open) {
+            ancestors.add(element.copy());
+        }
+
+        partStart = position;
+        partAncestors = ancestors;
+    }
+
+    private void emit(long end, byte[] tail) throws IOException {
+        consumer.accept(new Part(filename, index++, head(), partStart, end, tail));
+    }
+
+    /**
+     * The prolog and the start tags and attributes of the elements enclosing the current part.
+     */
+    private byte[] head() throws IOException {
+        List<Element> ancestors = partAncestors;
+        if (ancestors == null) {
+            return new byte[0];
+        }
+
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        head.write(read(0, (int) rootStart));
+
+        for (Element element : ancestors) {
+            head.write(read(element.start, element.length));
+            for (long[] attributes : element.attributes) {
+                head.write(read(attributes[0], (int) (attributes[1] - attributes[0])));
+            }
+        }
+
+        return head.toByteArray();
+    }
+
+    private byte[] read(long position, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, position + bytes.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+
+        return bytes.array();
+    }
+
+    private static String localName(byte[] qName) {
+        int start = 0;
+        for (int i = 0; i < qName.length; i++) {
+            if (qName[i] == ':') {
+                start = i + 1;
+            }
+        }
+        return new String(qName, start, qName.length - start, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Skips the rest of a start tag, returning whether it was an empty element tag.
+     */
+    private boolean skipTag(int c) throws IOException {
+        int quote = 0;
+        int previous = 0;
+
+        for (;; c = read()) {
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return previous == '/';
+            }
+            previous = c;
+        }
+    }
+
+    /**
+     * Skips a comment, a CDATA section or a DOCTYPE declaration.
+     */
+    private void skipDeclaration() throws IOException {
+        int c = read();
+
+        if (c == '-') {
+            read();
+            skipPast('-', '-', '>');
+        } else if (c == '[') {
+            skipPast(']', ']', '>');
+        } else {
+            int brackets = 0;
+            int quote = 0;
+
+            for (;; c = read()) {
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '[') {
+                    brackets++;
+                } else if (c == ']') {
+                    brackets--;
+                } else if (c == '>' && brackets == 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves past the next occurrence of the two or three bytes.
+     */
+    private void skipPast(int... end) throws IOException {
+        int first = -1;
+        int second = -1;
+
+        for (;;) {
+            int c = read();
+
+            if (end.length == 2 ? second == end[0] && c == end[1] : first == end[0] && second == end[1] && c == end[2]) {
+                return;
+            }
+
+            first = second;
+            second = c;
+        }
+    }
+
+    /**
+     * Moves past the next occurrence of the byte. Returns false at the end of the file.
+     */
+    private boolean skipTo(char b) throws IOException {
+        for (;;) {
+            while (pos < limit) {
+                if (buf[pos++] == b) {
+                    return true;
+                }
+            }
+            if (!fill()) {
+                return false;
+            }
+        }
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill()) {
+            throw new EOFException("Unexpected end of " + filename);
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    private long position() {
+        return offset + pos;
+    }
+
+    private boolean fill() throws IOException {
+        offset += limit;
+        pos = limit = 0;
+        buffer.clear();
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+        }
+
+        limit = buffer.position();
+        return limit > 0;
+    }
+
+    /**
+     * An element enclosing a part.
+     */
+    private static final class Element {
+
+        final byte[] qName;
+
+        final long start;
+
+        final int length;
+
+        /**
+         * Positions of the xn:attributes elements of the element.
+         */
+        final List<long[]> attributes;
+
+        /**
+         * Set if the element is or has vendor specific data.
+         */
+        boolean vendorSpecific = false;
+
+        Element(byte[] qName, long start, int length) {
+            this(qName, start, length, new ArrayList<>());
+        }
+
+        private Element(byte[] qName, long start, int length, List<long[]> attributes) {
+            this.qName = qName;
+            this.start = start;
+            this.length = length;
+            this.attributes = attributes;
+        }
+
+        Element copy() {
+            Element copy = new Element(qName, start, length, new ArrayList<>(attributes));
+            copy.vendorSpecific = vendorSpecific;
+            return copy;
+        }
+    }
+
+    /**
+     * A part of a file, or a whole file.
+     */
+    public static final class Part {
+
+        private final String file;
+
+        private final int index;
+
+        private final byte @Nullable [] head;
+
+        private final long start;
+
+        private final long end;
+
+        private final byte[] tail;
+
+        Part(String file) {
+            this(file, 0, null, 0, -1, new byte[0]);
+        }
+
+        Part(String file, int index, byte @Nullable [] head, long start, long end, byte[] tail) {
+            this.file = file;
+            this.index = index;
+            this.head = head;
+            this.start = start;
+            this.end = end;
+            this.tail = tail;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        /**
+         * Position of the part in the file, from 0.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public boolean isWholeFile() {
+            return head == null;
+        }
+
+        /**
+         * Opens the part as a document of its own.
+         */
+        public InputStream open() throws IOException {
+            byte[] head = this.head;
+
+            if (head == null) {
+                return CompressedInput.open(file);
+            }
+
+            FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+
+            return new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                    new ByteArrayInputStream(head), new MappedInput(channel, start, end, MappedInput.DEFAULT_WINDOW_SIZE), new ByteArrayInputStream(tail))));
+        }
+
+        /**
+         * The file name, followed by the part's index if the file was split.
+         */
+        @Override
+        public String toString() {
+            return isWholeFile() ? file : file + "#" + index;
+        }
+    }
+}
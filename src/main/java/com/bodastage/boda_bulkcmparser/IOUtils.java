@@ -1,8 +1,12 @@
 package com.bodastage.boda_bulkcmparser;
 
 import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 public class IOUtils {
 
@@ -23,4 +27,71 @@ public class IOUtils {
     	} catch (IOException ignored) {}
     }
 
+    /**
+     * Deletes a file or a directory with its content, as far as possible.
+     */
+    public static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Writes a zig-zag encoded variable length int.
+     */
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        int v = (value << 1) ^ (value >> 31);
+
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        int v = 0;
+
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readByte();
+            v |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+
+        throw new EOFException("Malformed variable length int");
+    }
+
+    /**
+     * Writes a length prefixed UTF-8 string. Unlike {@link DataOutput#writeUTF(String)}
+     * the string is not limited to 64KB and may be null.
+     */
+    public static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            writeVarInt(out, -1);
+            return;
+        }
+
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int length = readVarInt(in);
+
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
 }
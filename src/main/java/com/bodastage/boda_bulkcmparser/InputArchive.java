@@ -0,0 +1,381 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * The members of a zip or tar input file, read one after the other as
+ * streams without extracting them to disk.
+ *
+ * tar files may be compressed, see {@link CompressedInput}, and are read in
+ * one pass through the compressed stream. The tar reader understands ustar
+ * headers with their name prefix, GNU long names and pax path records.
+ * Compressed members are decompressed as they are read.
+ */
+public abstract class InputArchive implements Closeable {
+
+    /**
+     * Separates the archive and the member path in the names of members.
+     */
+    public static final String MEMBER_SEPARATOR = "!/";
+
+    private static final byte[] ZIP_MAGIC = {'P', 'K', 3, 4};
+
+    private static final int TAR_BLOCK_SIZE = 512;
+
+    private static final int TAR_MAGIC_OFFSET = 257;
+
+    /**
+     * Whether the file is a zip or a, possibly compressed, tar file.
+     */
+    public static boolean isArchive(String filename) throws IOException {
+        return isZip(filename) || isTar(filename);
+    }
+
+    /**
+     * Opens an archive for reading its members.
+     *
+     * @throws IOException if the file is not an archive
+     */
+    public static InputArchive open(String filename) throws IOException {
+        if (isZip(filename)) {
+            return new Zip(filename);
+        } else if (isTar(filename)) {
+            return new Tar(filename);
+        }
+        throw new IOException(filename + " is not a zip or tar archive");
+    }
+
+    private static boolean isZip(String filename) throws IOException {
+        byte[] magic = new byte[ZIP_MAGIC.length];
+
+        try (InputStream in = new FileInputStream(filename)) {
+            return readFully(in, magic) == magic.length && Arrays.equals(magic, ZIP_MAGIC);
+        }
+    }
+
+    private static boolean isTar(String filename) throws IOException {
+        byte[] header = new byte[TAR_BLOCK_SIZE];
+
+        try (InputStream in = CompressedInput.open(filename)) {
+            return readFully(in, header) == header.length && isTarHeader(header);
+        }
+    }
+
+    private static boolean isTarHeader(byte[] header) {
+        return new String(header, TAR_MAGIC_OFFSET, 5, StandardCharsets.US_ASCII).equals("ustar");				//POSIX "ustar\0" and GNU "ustar  "
+    }
+
+    /**
+     * Moves to the next member which is a file.
+     *
+     * @return the path of the member in the archive, null after the last member
+     */
+    @Nullable
+    public abstract String next() throws IOException;
+
+    /**
+     * Opens the current member. The member can be opened again, which reads
+     * the archive again up to the member when the archive is not a zip file.
+     */
+    public abstract InputStream openMember() throws IOException;
+
+    /**
+     * Reads until the buffer is full or the end of the stream and returns the number of bytes read.
+     */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        int n;
+
+        while (length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) >= 0) {
+            length += n;
+        }
+
+        return length;
+    }
+
+    private static final class Zip extends InputArchive {
+
+        private final ZipFile zip;
+
+        private final Enumeration<? extends ZipEntry> entries;
+
+        @Nullable
+        private ZipEntry entry = null;
+
+        Zip(String filename) throws IOException {
+            zip = new ZipFile(filename);
+            entries = zip.entries();
+        }
+
+        @Override
+        @Nullable
+        public String next() {
+            while (entries.hasMoreElements()) {
+                entry = entries.nextElement();
+
+                if (!entry.isDirectory()) {
+                    return entry.getName();
+                }
+            }
+
+            entry = null;
+            return null;
+        }
+
+        @Override
+        public InputStream openMember() throws IOException {
+            if (entry == null) {
+                throw new IllegalStateException("No current member");
+            }
+            return CompressedInput.decompress(zip.getInputStream(entry));
+        }
+
+        @Override
+        public void close() throws IOException {
+            zip.close();
+        }
+    }
+
+    private static final class Tar extends InputArchive {
+
+        private static final byte REGULAR = '0';
+        private static final byte REGULAR_OLD = 0;
+        private static final byte CONTIGUOUS = '7';
+        private static final byte GNU_LONG_NAME = 'L';
+        private static final byte PAX_HEADER = 'x';
+
+        private final String filename;
+
+        private final InputStream in;
+
+        private final byte[] header = new byte[TAR_BLOCK_SIZE];
+
+        private final byte[] skipBuffer = new byte[8192];
+
+        /**
+         * Number of members returned by {@link #next()}.
+         */
+        private int index = 0;
+
+        /**
+         * Bytes of the current member not read yet, followed by its padding.
+         */
+        private long remaining = 0;
+        private long padding = 0;
+
+        private boolean opened = false;
+
+        private boolean ended = false;
+
+        Tar(String filename) throws IOException {
+            this.filename = filename;
+            this.in = CompressedInput.open(filename);
+        }
+
+        @Override
+        @Nullable
+        public String next() throws IOException {
+            @Nullable String longName = null;
+
+            skip(remaining + padding);
+            remaining = 0;
+            padding = 0;
+            opened = false;
+
+            while (!ended) {
+                if (readFully(in, header) < TAR_BLOCK_SIZE || header[0] == 0) {
+                    ended = true;																	//End of archive blocks
+                    break;
+                }
+
+                long size = parseSize();
+                byte type = header[156];
+
+                if (type == GNU_LONG_NAME || type == PAX_HEADER) {
+                    String extended = new String(readData(size), StandardCharsets.UTF_8);
+                    longName = type == GNU_LONG_NAME ? trimNul(extended) : paxPath(extended, longName);
+                    continue;
+                }
+
+                remaining = size;
+                padding = (TAR_BLOCK_SIZE - size % TAR_BLOCK_SIZE) % TAR_BLOCK_SIZE;
+
+                if (type == REGULAR || type == REGULAR_OLD || type == CONTIGUOUS) {
+                    index++;
+                    return longName != null ? longName : headerName();
+                }
+
+                skip(remaining + padding);															//Directories, links and other entries
+                remaining = 0;
+                padding = 0;
+                longName = null;
+            }
+
+            return null;
+        }
+
+        @Override
+        public InputStream openMember() throws IOException {
+            if (!opened) {
+                opened = true;
+                return CompressedInput.decompress(new MemberStream());
+            }
+
+            Tar again = new Tar(filename);																//The member has been read, read the archive again up to it
+            try {
+                for (int i = 0; i < index; i++) {
+                    if (again.next() == null) {
+                        throw new EOFException("Member " + index + " of " + filename + " not found");
+                    }
+                }
+                again.opened = true;
+                return new FilterInputStream(CompressedInput.decompress(again.new MemberStream())) {
+                    @Override
+                    public void close() throws IOException {
+                        again.close();
+                    }
+                };
+            } catch (IOException | RuntimeException e) {
+                again.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private String headerName() {
+            String name = field(0, 100);
+
+            if (new String(header, TAR_MAGIC_OFFSET, 6, StandardCharsets.US_ASCII).equals("ustar\0")) {
+                String prefix = field(345, 155);															//POSIX ustar only, GNU uses these bytes otherwise
+                if (!prefix.isEmpty()) {
+                    name = prefix + "/" + name;
+                }
+            }
+
+            return name;
+        }
+
+        private String field(int offset, int length) {
+            return trimNul(new String(header, offset, length, StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Size in octal, or in base-256 when the high bit of the first byte is set.
+         */
+        private long parseSize() throws IOException {
+            long size = 0;
+
+            if ((header[124] & 0x80) != 0) {
+                for (int i = 125; i < 136; i++) {
+                    size = (size << 8) | (header[i] & 0xff);
+                }
+                return size;
+            }
+
+            for (int i = 124; i < 136; i++) {
+                byte b = header[i];
+
+                if (b >= '0' && b <= '7') {
+                    size = (size << 3) | (b - '0');
+                } else if (b != ' ' && b != 0) {
+                    throw new IOException("Invalid tar header in " + filename);
+                } else if (size > 0) {
+                    break;
+                }
+            }
+
+            return size;
+        }
+
+        private byte[] readData(long size) throws IOException {
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Tar header too large in " + filename);
+            }
+
+            byte[] data = new byte[(int) size];
+            if (readFully(in, data) < data.length) {
+                throw new EOFException("Truncated tar file " + filename);
+            }
+            skip((TAR_BLOCK_SIZE - size % TAR_BLOCK_SIZE) % TAR_BLOCK_SIZE);
+            return data;
+        }
+
+        private void skip(long n) throws IOException {
+            while (n > 0) {
+                int read = in.read(skipBuffer, 0, (int) Math.min(skipBuffer.length, n));
+                if (read < 0) {
+                    throw new EOFException("Truncated tar file " + filename);
+                }
+                n -= read;
+            }
+        }
+
+        private static String trimNul(String s) {
+            int end = s.indexOf(0);
+            return end < 0 ? s : s.substring(0, end);
+        }
+
+        /**
+         * The path record of pax extended header records "length key=value\n".
+         */
+        @Nullable
+        private static String paxPath(String records, @Nullable String path) {
+            for (String record : records.split("\n")) {
+                int space = record.indexOf(' ');
+
+                if (space > 0 && record.startsWith("path=", space + 1)) {
+                    path = record.substring(space + 1 + "path=".length());
+                }
+            }
+            return path;
+        }
+
+        /**
+         * Reads the current member from the archive stream. Closing it leaves the archive open.
+         */
+        private final class MemberStream extends InputStream {
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+
+                int n = in.read(b, off, (int) Math.min(len, remaining));
+                if (n < 0) {
+                    throw new EOFException("Truncated tar file " + filename);
+                }
+
+                remaining -= n;
+                return n;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return (int) Math.min(in.available(), remaining);
+            }
+        }
+    }
+}
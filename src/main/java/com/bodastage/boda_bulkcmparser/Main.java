@@ -17,8 +17,28 @@ public class Main {
             //show help
             if (args.length < 2 || arguments.contains("-h")) {
                 System.out.println("boda-bulkcmparser " + VERSION + " Copyright (c) 2018 Bodastage(http://www.bodastage.com)");
-                System.out.println("Parses 3GPP Bulk CM XML to csv.");
-                System.out.println("Usage: java -jar boda-bulkcmparser.jar <fileToParse.xml|Directory> <outputDirectory> [parameter.conf] [-D] [-c=delimiter]");
+                System.out.println("Parses 3GPP Bulk CM XML to csv. Input files may be gzip, bzip2 or xz compressed, or zip or tar archives (bzip2 and xz need commons-compress on the classpath, xz also needs xz).");
+                System.out.println("Usage: java -jar boda-bulkcmparser.jar <fileToParse.xml|Directory> <outputDirectory> [parameter.conf] [-D] [-c=delimiter] [-S] [-catalog=schema.catalog] [-eventlog[=level]] [-backend=name] [-outbuffer=bytes] [-maxopen=files] [-async[=threads]] [-queue=rows] [-readahead[=chunks]] [-readchunk=bytes] [-compress=gzip|zstd] [-compresslevel=N] [-compressblock=bytes] [-compressthreads=N] [-threads=N] [-split[=bytes]] [-shard=workDirectory|-merge=workDirectory] [-include=glob] [-exclude=glob]");
+                System.out.println("  -S  single pass: parse the input once, spooling rows until the headers are known");
+                System.out.println("  -catalog  schema catalog: skip the parameter extraction stage if the file exists, save the columns after parsing");
+                System.out.println("  -eventlog  record the XML events in the first pass and replay them in the second, optionally deflate compressed (level 1-9)");
+                System.out.println("  -backend  XML parser: " + String.join(", ", XmlBackends.names()) + " (default " + XmlBackends.STAX + ")");
+                System.out.println("  -outbuffer  write buffer size of each csv file in bytes (default " + CSVChannelWriter.DEFAULT_BUFFER_SIZE + ")");
+                System.out.println("  -maxopen  number of csv files kept open, the least recently written are closed and reopened when needed (default " + OutputFilePool.DEFAULT_MAX_OPEN_FILES + "), and print the hit, miss and eviction counts");
+                System.out.println("  -async  format and write the csv rows on a pool of threads (default " + defaultOutputThreads() + ") instead of the parsing thread");
+                System.out.println("  -queue  number of rows queued for the output threads, parsing waits while the queue is full (default " + AsyncRowWriter.DEFAULT_QUEUE_CAPACITY + ")");
+                System.out.println("  -readahead  read and decompress the input on a thread of its own, up to the given number of chunks ahead of the parser (default " + ReadAhead.DEFAULT_DEPTH + "), and print the time the parser waited for input");
+                System.out.println("  -readchunk  bytes of input read ahead at a time (default " + ReadAhead.DEFAULT_CHUNK_SIZE + ")");
+                System.out.println("  -compress  write " + String.join(" or ", OutputCompressor.formats()) + " compressed csv files, compressing blocks of each file on a pool of threads (zstd needs zstd-jni on the classpath)");
+                System.out.println("  -compresslevel  compression level (default " + OutputCompressor.defaultLevel(OutputCompressor.GZIP) + " for gzip, " + OutputCompressor.defaultLevel(OutputCompressor.ZSTD) + " for zstd)");
+                System.out.println("  -compressblock  bytes of each csv file compressed as a block, in place of -outbuffer (default " + OutputCompressor.DEFAULT_BLOCK_SIZE + ")");
+                System.out.println("  -compressthreads  number of compressing threads (default " + defaultOutputThreads() + ")");
+                System.out.println("  -threads  number of files of a directory parsed at the same time (default 1)");
+                System.out.println("  -split  with -threads, split files larger than the given size at MeContext elements and parse the parts on the threads (default " + FileSplitter.DEFAULT_PART_SIZE + ")");
+                System.out.println("  -shard  worker mode: parse the files of the input no other worker has claimed in the shared work directory, on -threads threads; nothing is written to the output directory");
+                System.out.println("  -include  only parse the files of the input directory and its subdirectories, and the zip and tar members, which match the glob; a glob without '/' matches the file name");
+                System.out.println("  -exclude  skip the files, directories and archive members which match the glob");
+                System.out.println("  -merge  write the output of the shards of the work directory once the workers have parsed all files of the input");
                 System.exit(1);
             }
 
@@ -46,16 +66,95 @@ public class Main {
             // Read collision fine name delimiter from the command-line
             String collideDelmitier = readOpt("c", arguments, "_");
 
+            // Schema catalog saved by previous runs
+            String catalogFile = readOpt("catalog", arguments, null);
+
+            // Write buffer size of the csv files
+            int outputBufferSize = Integer.parseInt(readOpt("outbuffer", arguments, String.valueOf(CSVChannelWriter.DEFAULT_BUFFER_SIZE)));
+
+            // Number of csv files kept open, the pool statistics are printed when it is given
+            String maxOpen = readOpt("maxopen", arguments, null);
+            int maxOpenFiles = maxOpen != null ? Integer.parseInt(maxOpen) : OutputFilePool.DEFAULT_MAX_OPEN_FILES;
+
+            BulkOutputWriter output = new BulkOutputWriter(collideDelmitier, outputDirectory, outputBufferSize, maxOpenFiles);
+
+            // Async output
+            String outputThreads = readOpt("async", arguments, arguments.contains("-async") ? String.valueOf(defaultOutputThreads()) : null);
+            if (outputThreads != null) {
+                output.setAsync(Integer.parseInt(outputThreads),
+                        Integer.parseInt(readOpt("queue", arguments, String.valueOf(AsyncRowWriter.DEFAULT_QUEUE_CAPACITY))));
+            }
+
+            // Compressed output
+            String compression = readOpt("compress", arguments, null);
+            if (compression != null) {
+                output.setCompression(new OutputCompressor(compression,
+                        Integer.parseInt(readOpt("compresslevel", arguments, String.valueOf(OutputCompressor.defaultLevel(compression)))),
+                        Integer.parseInt(readOpt("compressblock", arguments, String.valueOf(OutputCompressor.DEFAULT_BLOCK_SIZE))),
+                        Integer.parseInt(readOpt("compressthreads", arguments, String.valueOf(defaultOutputThreads())))));
+            }
+
             //Get bulk CM XML file to parse.
-            try (BodaBulkCMParser cmParser = new BodaBulkCMParser(new BulkOutputWriter(collideDelmitier, outputDirectory))) {
+            try (BodaBulkCMParser cmParser = new BodaBulkCMParser(output)) {
 
-	            if (args.length == 3 && new File(args[2]).isFile()) {
+	            boolean parameterFile = args.length >= 3 && new File(args[2]).isFile();
+	            if (parameterFile) {
                    cmParser.loadParametersForExtraction(args[2]);
+	            } else if (catalogFile != null && new File(catalogFile).isFile()) {
+	               cmParser.loadSchemaCatalog(catalogFile);
 	            }
 
+	            cmParser.setSinglePass(arguments.contains("-S"));
+
+	            cmParser.setThreads(Integer.parseInt(readOpt("threads", arguments, "1")));
+
+	            String splitSize = readOpt("split", arguments, arguments.contains("-split") ? String.valueOf(FileSplitter.DEFAULT_PART_SIZE) : null);
+	            if (splitSize != null) {
+	                cmParser.setSplitSize(Long.parseLong(splitSize));
+	            }
+
+	            cmParser.setIncludeGlob(readOpt("include", arguments, null));
+	            cmParser.setExcludeGlob(readOpt("exclude", arguments, null));
+
+	            cmParser.setXmlBackend(XmlBackends.create(readOpt("backend", arguments, XmlBackends.STAX)));
+
+	            String readAheadDepth = readOpt("readahead", arguments, arguments.contains("-readahead") ? String.valueOf(ReadAhead.DEFAULT_DEPTH) : null);
+	            if (readAheadDepth != null) {
+	                cmParser.setReadAhead(new ReadAhead(Integer.parseInt(readAheadDepth),
+	                        Integer.parseInt(readOpt("readchunk", arguments, String.valueOf(ReadAhead.DEFAULT_CHUNK_SIZE)))));
+	            }
+
+	            String eventLog = readOpt("eventlog", arguments, arguments.contains("-eventlog") ? "0" : null);
+	            if (eventLog != null) {
+	                cmParser.setEventLogEnabled(true);
+	                cmParser.setEventLogCompression(Integer.parseInt(eventLog));
+	            }
+
+	            String shardDirectory = readOpt("shard", arguments, null);
+	            String mergeDirectory = readOpt("merge", arguments, null);
+
 	            final long startTime = System.currentTimeMillis();
-	            cmParser.parse(inputFile);
+	            if (shardDirectory != null) {
+	               cmParser.parseShards(inputFile, new ShardDirectory(new File(shardDirectory)));
+	            } else if (mergeDirectory != null) {
+	               cmParser.mergeShards(inputFile, new ShardDirectory(new File(mergeDirectory)));
+	            } else {
+	               cmParser.parse(inputFile);
+	            }
+
+	            // The schema only holds the parameter file's columns, and the shard
+	            // workers keep their columns in the work directory.
+	            if (catalogFile != null && !parameterFile && shardDirectory == null) {
+	               cmParser.saveSchemaCatalog(catalogFile);
+	            }
+
 	            printExecutionTime(startTime);
+	            if (maxOpen != null) {
+	                System.out.println(output.getFilePool());
+	            }
+	            if (cmParser.getReadAhead() != null) {
+	                System.out.println(cmParser.getReadAhead());
+	            }
             }
         } catch(Exception e) {
             e.printStackTrace();
@@ -102,6 +201,13 @@ public class Main {
         System.out.println(s);
     }
 
+    /**
+     * Number of async output and compressing threads, leaving a processor for parsing.
+     */
+    private static int defaultOutputThreads() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
     private static String readOpt(String key, List<String> arguments, String def) {
     	for (String i : arguments) {
     		if (i.indexOf("-" + key + "=") == 0) {
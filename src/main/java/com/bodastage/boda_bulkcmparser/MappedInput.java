@@ -0,0 +1,283 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file, or a range of a file, through memory mapped windows.
+ *
+ * Only a window of the file is mapped at a time, so files larger than 2 GB,
+ * which cannot be mapped as one buffer, are read the same way. Bytes are
+ * copied straight from the page cache without a read call per buffer, and a
+ * file read again, as in the second pass, is read from the pages the first
+ * pass left in the cache. Windows which have been read are unmapped by the
+ * garbage collector.
+ *
+ * {@link #reader()} decodes UTF-8 straight from the windows, for parsers
+ * which read characters.
+ *
+ * The file must not be truncated while it is read.
+ */
+public final class MappedInput extends InputStream {
+
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 26;
+
+    /**
+     * Files smaller than this are read rather than mapped by {@link #open(String)}.
+     */
+    public static final long MIN_MAPPED_SIZE = 1 << 20;
+
+    private static final int MIN_WINDOW_SIZE = 16;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final FileChannel channel;
+
+    private final long end;
+
+    private final int windowSize;
+
+    /**
+     * Position of the window in the file. The window is mapped when it is
+     * first read from, so it may be empty.
+     */
+    private long windowStart;
+
+    private ByteBuffer window = EMPTY;
+
+    private long mark = -1;
+
+    /**
+     * Reads the bytes of the channel from start to end. The channel is closed with the stream.
+     */
+    public MappedInput(FileChannel channel, long start, long end, int windowSize) {
+        if (windowSize < MIN_WINDOW_SIZE) {
+            throw new IllegalArgumentException("Window size must be at least " + MIN_WINDOW_SIZE + " bytes: " + windowSize);
+        }
+
+        this.channel = channel;
+        this.windowStart = start;
+        this.end = end;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Opens a file, mapping it if it is large enough.
+     */
+    public static InputStream open(String filename) throws IOException {
+        if (new File(filename).length() < MIN_MAPPED_SIZE) {
+            return new FileInputStream(filename);
+        }
+
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try {
+            return new MappedInput(channel, 0, channel.size(), DEFAULT_WINDOW_SIZE);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Position in the file.
+     */
+    public long position() {
+        return windowStart + window.position();
+    }
+
+    @Override
+    public int read() throws IOException {
+        return next() ? window.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!next()) {
+            return -1;
+        }
+
+        int n = Math.min(len, window.remaining());
+        window.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long position = position();
+        long target = Math.min(end, position + Math.max(0, n));
+
+        seek(target);
+        return target - position;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, end - position());
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+        mark = position();
+    }
+
+    @Override
+    public void reset() throws IOException {
+        if (mark < 0) {
+            throw new IOException("Mark not set");
+        }
+        seek(mark);
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = EMPTY;
+        channel.close();
+    }
+
+    /**
+     * Returns a reader which decodes the rest of the input as UTF-8. A byte
+     * order mark is skipped and malformed input fails with a
+     * CharacterCodingException. The stream must not be read while the
+     * reader is used, and closing the reader closes the stream.
+     */
+    public Reader reader() {
+        return new Utf8Reader();
+    }
+
+    /**
+     * Maps the next window if the current one has been read.
+     *
+     * @return false at the end of the input
+     */
+    private boolean next() throws IOException {
+        if (window.hasRemaining()) {
+            return true;
+        }
+
+        long position = position();
+        if (position >= end) {
+            return false;
+        }
+
+        map(position);
+        return true;
+    }
+
+    private void map(long position) throws IOException {
+        windowStart = position;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(windowSize, end - position));
+    }
+
+    private void seek(long position) {
+        if (position >= windowStart && position <= windowStart + window.limit()) {
+            window.position((int) (position - windowStart));
+        } else {
+            windowStart = position;
+            window = EMPTY;
+        }
+    }
+
+    /**
+     * Decodes the windows into the caller's buffer. A character split by the
+     * end of a window is decoded from the next window, which is mapped from
+     * the first byte not decoded yet.
+     */
+    private final class Utf8Reader extends Reader {
+
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+        /**
+         * Second half of a surrogate pair which did not fit the caller's buffer.
+         */
+        private final CharBuffer pending = CharBuffer.allocate(2);
+
+        private boolean started = false;
+
+        private boolean flushed = false;
+
+        Utf8Reader() {
+            pending.flip();
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (!started) {
+                started = true;
+                skipByteOrderMark();
+            }
+
+            CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+
+            while (pending.hasRemaining() && out.hasRemaining()) {
+                out.put(pending.get());
+            }
+
+            while (out.position() == off && !flushed) {
+                boolean last = windowStart + window.limit() >= end;
+                CoderResult result = decoder.decode(window, out, last);
+
+                if (result.isError()) {
+                    result.throwException();
+                } else if (result.isOverflow()) {
+                    if (out.position() == off) {														//A surrogate pair in a one char buffer
+                        pending.clear();
+                        CoderResult pair = decoder.decode(window, pending, last);
+                        pending.flip();
+                        if (pair.isError()) {
+                            pair.throwException();
+                        }
+                        out.put(pending.get());
+                    }
+                } else if (last) {
+                    decoder.flush(out);
+                    flushed = true;
+                } else {
+                    map(position());																	//Leftover bytes of a split character start the next window
+                }
+            }
+
+            int n = out.position() - off;
+            return n == 0 ? -1 : n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            MappedInput.this.close();
+        }
+
+        private void skipByteOrderMark() throws IOException {
+            if (next() && window.remaining() >= 3
+                    && window.get(window.position()) == (byte) 0xEF
+                    && window.get(window.position() + 1) == (byte) 0xBB
+                    && window.get(window.position() + 2) == (byte) 0xBF) {
+                window.position(window.position() + 3);
+            }
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Compresses csv files on a pool of threads.
+ *
+ * The bytes of each file are cut into blocks which are compressed on their
+ * own, as gzip members or zstd frames, so the blocks of a file are compressed
+ * in parallel and the writing thread only hands them over. A file is the
+ * concatenation of its compressed blocks, which gzip and zstd tools read as
+ * one stream. Files can therefore be closed and appended to later, and
+ * compressed files can be appended to each other.
+ *
+ * <ul>
+ * <li>gzip: java.util.zip, levels 1 to 9</li>
+ * <li>zstd: needs com.github.luben:zstd-jni on the classpath, levels 1 to 22</li>
+ * </ul>
+ *
+ * Each open file holds a block of uncompressed bytes, so the block size times
+ * the number of open files bounds the memory used for buffering.
+ */
+public class OutputCompressor implements Closeable {
+
+    public static final String GZIP = "gzip";
+    public static final String ZSTD = "zstd";
+
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 18;
+
+    private static final String ZSTD_CLASS = "com.github.luben.zstd.Zstd";
+
+    /**
+     * Number of blocks per thread which may wait to be compressed before writers wait.
+     */
+    private static final int QUEUED_BLOCKS_PER_THREAD = 4;
+
+    /**
+     * Number of block buffers a file keeps for reuse.
+     */
+    private static final int FREE_BLOCKS = 2;
+
+    private final String format;
+
+    private final int level;
+
+    private final int blockSize;
+
+    private final ExecutorService executor;
+
+    /**
+     * Blocks which may be queued or being compressed.
+     */
+    private final Semaphore queued;
+
+    private final ThreadLocal<Deflater> deflaters;
+
+    /**
+     * Methods of zstd-jni's Zstd class, null unless the format is zstd.
+     */
+    private final @Nullable Method zstdCompressBound;
+    private final @Nullable Method zstdCompress;
+    private final @Nullable Method zstdIsError;
+    private final @Nullable Method zstdGetErrorName;
+
+    /**
+     * @param level compression level, see {@link #defaultLevel(String)}
+     * @param blockSize number of uncompressed bytes per block
+     * @param threads number of threads compressing blocks
+     */
+    public OutputCompressor(String format, int level, int blockSize, int threads) {
+        if (!formats().contains(format)) {
+            throw new IllegalArgumentException("Unknown output compression " + format + ", expected one of " + formats());
+        }
+        if (level < 1 || level > (GZIP.equals(format) ? 9 : 22)) {
+            throw new IllegalArgumentException("Invalid " + format + " compression level " + level);
+        }
+        if (blockSize < CSVChannelWriter.MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Compression block size must be at least " + CSVChannelWriter.MIN_BUFFER_SIZE + " bytes: " + blockSize);
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of compression threads must be at least 1: " + threads);
+        }
+
+        if (ZSTD.equals(format)) {
+            try {
+                Class<?> zstd = Class.forName(ZSTD_CLASS);
+
+                zstdCompressBound = zstd.getMethod("compressBound", long.class);
+                zstdCompress = zstd.getMethod("compressByteArray", byte[].class, int.class, int.class, byte[].class, int.class, int.class, int.class);
+                zstdIsError = zstd.getMethod("isError", long.class);
+                zstdGetErrorName = zstd.getMethod("getErrorName", long.class);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                throw new IllegalArgumentException("zstd output needs zstd-jni on the classpath: " + e);
+            }
+        } else {
+            zstdCompressBound = null;
+            zstdCompress = null;
+            zstdIsError = null;
+            zstdGetErrorName = null;
+        }
+
+        this.format = format;
+        this.level = level;
+        this.blockSize = blockSize;
+        this.queued = new Semaphore(threads * QUEUED_BLOCKS_PER_THREAD);
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "boda-bulkcmparser-compressor-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static List<String> formats() {
+        return Arrays.asList(GZIP, ZSTD);
+    }
+
+    public static int defaultLevel(String format) {
+        return ZSTD.equals(format) ? 3 : 6;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * File name extension of the compressed files.
+     */
+    public String getExtension() {
+        return ZSTD.equals(format) ? ".zst" : ".gz";
+    }
+
+    /**
+     * Returns the channel blocks of a file are written to.
+     */
+    public BlockChannel open(FileChannel channel) {
+        return new BlockChannel(channel);
+    }
+
+    /**
+     * Stops the compressing threads. The files have to be closed first.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private Block compress(byte[] bytes, int length) throws IOException {
+        try {
+            return ZSTD.equals(format) ? zstd(bytes, length) : gzip(bytes, length);
+        } finally {
+            queued.release();
+        }
+    }
+
+    /**
+     * Compresses the bytes into a gzip member.
+     */
+    private Block gzip(byte[] bytes, int length) {
+        Deflater deflater = deflaters.get();
+        CRC32 crc = new CRC32();
+        byte[] out = new byte[Math.max(64, length / 4)];
+        int size = 10;
+
+        crc.update(bytes, 0, length);
+        deflater.reset();
+        deflater.setInput(bytes, 0, length);
+        deflater.finish();
+
+        out[0] = 0x1f;																				//Header: magic, deflate, no flags, time or extra flags, unknown OS
+        out[1] = (byte) 0x8b;
+        out[2] = Deflater.DEFLATED;
+        out[9] = (byte) 0xff;
+
+        while (!deflater.finished()) {
+            if (size == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            size += deflater.deflate(out, size, out.length - size);
+        }
+
+        if (out.length - size < 8) {
+            out = Arrays.copyOf(out, size + 8);
+        }
+        writeIntLE(out, size, (int) crc.getValue());
+        writeIntLE(out, size + 4, length);
+
+        return new Block(bytes, out, size + 8);
+    }
+
+    /**
+     * Compresses the bytes into a zstd frame.
+     */
+    private Block zstd(byte[] bytes, int length) throws IOException {
+        try {
+            byte[] out = new byte[(int) (long) zstdCompressBound.invoke(null, (long) length)];
+            long size = (long) zstdCompress.invoke(null, out, 0, out.length, bytes, 0, length, level);
+
+            if ((boolean) zstdIsError.invoke(null, size)) {
+                throw new IOException("zstd compression failed: " + zstdGetErrorName.invoke(null, size));
+            }
+
+            return new Block(bytes, out, (int) size);
+        } catch (IllegalAccessException e) {
+            throw new IOException("zstd compression failed", e);
+        } catch (InvocationTargetException e) {
+            throw new IOException("zstd compression failed", e.getCause());
+        }
+    }
+
+    private static void writeIntLE(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >> 8);
+        b[offset + 2] = (byte) (value >> 16);
+        b[offset + 3] = (byte) (value >> 24);
+    }
+
+    /**
+     * A compressed block and the buffer it was compressed from.
+     */
+    private static final class Block {
+
+        final byte[] input;
+
+        final byte[] compressed;
+
+        final int length;
+
+        Block(byte[] input, byte[] compressed, int length) {
+            this.input = input;
+            this.compressed = compressed;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Compresses the blocks of a file and writes them to the file in order.
+     *
+     * A block is handed to the compressing threads and written by the thread
+     * which writes the file, once it and the blocks before it are compressed.
+     * Used by one thread at a time.
+     */
+    public final class BlockChannel {
+
+        private final FileChannel channel;
+
+        /**
+         * Blocks handed over and not written yet, in file order.
+         */
+        private final ArrayDeque<Future<Block>> pending = new ArrayDeque<>();
+
+        private final ArrayDeque<byte[]> free = new ArrayDeque<>();
+
+        private BlockChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        /**
+         * Hands over the first length bytes of the buffer as a block, writes
+         * the blocks compressed so far and returns an empty buffer to fill
+         * next. The buffer handed over must not be used until it is returned
+         * again.
+         *
+         * Waits while the compressing threads are behind.
+         */
+        public byte[] write(byte[] bytes, int length) throws IOException {
+            writeCompressed(false);
+
+            if (length == 0) {
+                return bytes;
+            }
+
+            try {
+                queued.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while compressing " + format);
+            }
+
+            try {
+                pending.add(executor.submit(() -> compress(bytes, length)));
+            } catch (RuntimeException e) {
+                queued.release();
+                throw e;
+            }
+
+            byte[] next = free.poll();
+            return next != null ? next : new byte[bytes.length];
+        }
+
+        /**
+         * Waits for the blocks handed over and writes them to the file.
+         */
+        public void flush() throws IOException {
+            writeCompressed(true);
+        }
+
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                pending.clear();																	//Blocks left after a failure are compressed and dropped
+                channel.close();
+            }
+        }
+
+        /**
+         * Writes the blocks at the head of the queue which are compressed, or all blocks.
+         */
+        private void writeCompressed(boolean all) throws IOException {
+            while (!pending.isEmpty() && (all || pending.peek().isDone())) {
+                Block block;
+
+                try {
+                    block = pending.peek().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while compressing " + format);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(format + " compression failed", e.getCause());
+                }
+                pending.poll();
+
+                ByteBuffer compressed = ByteBuffer.wrap(block.compressed, 0, block.length);
+                while (compressed.hasRemaining()) {
+                    channel.write(compressed);
+                }
+
+                if (free.size() < FREE_BLOCKS) {
+                    free.add(block.input);
+                }
+            }
+        }
+    }
+}
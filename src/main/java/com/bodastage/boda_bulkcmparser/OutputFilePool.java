@@ -0,0 +1,144 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Bounds the number of csv files which are open at the same time.
+ *
+ * Output handles open their file through the pool. When the bound is reached
+ * the least recently written file is evicted: it is flushed and closed, and
+ * its handle reopens it in append mode with its next row. The victim is closed
+ * by the handle which evicted it, after it has released its own lock, so the
+ * bound can be exceeded for a moment while files are written from several
+ * threads.
+ */
+public class OutputFilePool {
+
+    public static final int DEFAULT_MAX_OPEN_FILES = 512;
+
+    private final int maxOpenFiles;
+
+    private BulkOutputWriter.Handle[] open = new BulkOutputWriter.Handle[16];
+
+    private int size = 0;
+
+    private final LongAdder hits = new LongAdder();
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    public OutputFilePool(int maxOpenFiles) {
+        if (maxOpenFiles < 1) {
+            throw new IllegalArgumentException("The number of open output files must be at least 1: " + maxOpenFiles);
+        }
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    public synchronized int getOpenFiles() {
+        return size;
+    }
+
+    /**
+     * Number of rows written to files which were open.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of times a file was opened, including the first time.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Number of files closed to make room for another.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Output files: %d hits, %d misses, %d evictions, at most %d open",
+                getHits(), getMisses(), getEvictions(), maxOpenFiles);
+    }
+
+    /**
+     * Recency stamp of a write. The time is used rather than a shared counter
+     * so that threads writing different files do not contend on it.
+     */
+    long tick() {
+        return System.nanoTime();
+    }
+
+    void hit() {
+        hits.increment();
+    }
+
+    /**
+     * Adds a handle which is opening its file and returns the handle whose
+     * file has to be closed to make room, if any.
+     */
+    synchronized BulkOutputWriter.@Nullable Handle add(BulkOutputWriter.Handle handle) {
+        misses++;
+
+        BulkOutputWriter.Handle victim = null;
+
+        if (size >= maxOpenFiles) {
+            int lru = 0;
+            for (int i = 1; i < size; i++) {
+                if (open[i].lastUsed < open[lru].lastUsed) {
+                    lru = i;
+                }
+            }
+
+            victim = open[lru];
+            removeAt(lru);
+            evictions++;
+        }
+
+        if (size == open.length) {
+            open = Arrays.copyOf(open, size * 2);
+        }
+
+        handle.poolIndex = size;
+        open[size++] = handle;
+
+        return victim;
+    }
+
+    /**
+     * Removes a handle whose file was closed.
+     */
+    synchronized void remove(BulkOutputWriter.Handle handle) {
+        if (handle.poolIndex >= 0) {
+            removeAt(handle.poolIndex);
+        }
+    }
+
+    /**
+     * Whether the handle's file is counted as open.
+     */
+    synchronized boolean contains(BulkOutputWriter.Handle handle) {
+        return handle.poolIndex >= 0;
+    }
+
+    private void removeAt(int index) {
+        BulkOutputWriter.Handle removed = open[index];
+
+        open[index] = open[--size];
+        open[index].poolIndex = index;
+        open[size] = null;
+        removed.poolIndex = -1;
+    }
+}
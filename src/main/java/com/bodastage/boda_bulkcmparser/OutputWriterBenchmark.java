@@ -0,0 +1,186 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures how the row throughput of a shared BulkOutputWriter scales with the
+ * number of threads writing to it.
+ *
+ * Each thread writes the rows of its own MOs, or with -shared all threads
+ * write to the same MOs. The APIs compared are:
+ * <ul>
+ * <li>handle: rows written through handles registered once per MO</li>
+ * <li>writeLine: rows written with {@link BulkOutputWriter#writeLine}</li>
+ * <li>global: writeLine with every call holding one lock, as all calls did before the writer was striped</li>
+ * </ul>
+ *
+ * Usage: OutputWriterBenchmark outputDirectory [-threads=1,2,4,8] [-rows=N] [-mos=N] [-api=handle,writeLine,global] [-shared] [-runs=N]
+ */
+public class OutputWriterBenchmark {
+
+    private static final int COLUMNS = 20;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: OutputWriterBenchmark <outputDirectory> [-threads=1,2,4,8] [-rows=N] [-mos=N] [-api=handle,writeLine,global] [-shared] [-runs=N]");
+            System.exit(1);
+        }
+
+        File directory = new File(args[0]);
+        int[] threadCounts = {1, 2, 4, 8};
+        int rows = 200000;
+        int mos = 16;
+        int runs = 3;
+        boolean shared = false;
+        List<String> apis = Arrays.asList("handle", "writeLine", "global");
+
+        for (String arg : Arrays.asList(args).subList(1, args.length)) {
+            if (arg.startsWith("-threads=")) {
+                threadCounts = Arrays.stream(arg.substring("-threads=".length()).split(",")).mapToInt(Integer::parseInt).toArray();
+            } else if (arg.startsWith("-rows=")) {
+                rows = Integer.parseInt(arg.substring("-rows=".length()));
+            } else if (arg.startsWith("-mos=")) {
+                mos = Integer.parseInt(arg.substring("-mos=".length()));
+            } else if (arg.startsWith("-runs=")) {
+                runs = Integer.parseInt(arg.substring("-runs=".length()));
+            } else if (arg.startsWith("-api=")) {
+                apis = Arrays.asList(arg.substring("-api=".length()).split(","));
+            } else if (arg.equals("-shared")) {
+                shared = true;
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        System.out.println(String.format("%d rows of %d columns per thread, %d MOs%s, %d runs, %d processors",
+                rows, COLUMNS, mos, shared ? " shared by all threads" : " per thread", runs, Runtime.getRuntime().availableProcessors()));
+        System.out.println(String.format("%-10s %8s %10s %14s %9s", "api", "threads", "best ms", "rows/s", "speedup"));
+
+        for (String api : apis) {
+            double single = 0;
+
+            for (int threads : threadCounts) {
+                run(directory, api, threads, rows, mos, shared);                                     //Warm up
+
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < runs; i++) {
+                    best = Math.min(best, run(directory, api, threads, rows, mos, shared));
+                }
+
+                double rowsPerSecond = (double) rows * threads / (best / 1e9);
+                if (single == 0) {
+                    single = rowsPerSecond / threads;
+                }
+
+                System.out.println(String.format("%-10s %8d %10d %14.0f %8.2fx", api, threads, best / 1000000, rowsPerSecond, rowsPerSecond / single));
+            }
+        }
+    }
+
+    /**
+     * Writes the rows from the threads and returns the time taken in nanoseconds.
+     */
+    private static long run(File directory, String api, int threads, int rows, int mos, boolean shared) throws Exception {
+        for (File f : directory.listFiles()) {
+            if (f.getName().endsWith(".csv")) {
+                f.delete();
+            }
+        }
+
+        String header = header();
+        BulkOutputWriter output = new BulkOutputWriter("_", directory.getAbsolutePath());
+        Thread[] workers = new Thread[threads];
+        Throwable[] failure = new Throwable[1];
+
+        for (int t = 0; t < threads; t++) {
+            String prefix = shared ? "MO" : "T" + t + "_MO";
+
+            workers[t] = new Thread(() -> {
+                try {
+                    write(output, api, prefix, header, rows, mos);
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        output.close();
+
+        long elapsed = System.nanoTime() - start;
+
+        if (failure[0] != null) {
+            throw new IllegalStateException("Writing failed", failure[0]);
+        }
+
+        return elapsed;
+    }
+
+    private static void write(BulkOutputWriter output, String api, String prefix, String header, int rows, int mos) {
+        String[] names = new String[mos];
+        BulkOutputWriter.Handle[] handles = new BulkOutputWriter.Handle[mos];
+        CharSequence[] values = new CharSequence[COLUMNS];
+        StringBuilder line = new StringBuilder();
+
+        for (int c = 0; c < COLUMNS; c++) {
+            values[c] = c % 7 == 3 ? "a,b" : "value" + c;
+        }
+
+        for (int m = 0; m < mos; m++) {
+            names[m] = prefix + m;
+            if (api.equals("handle")) {
+                handles[m] = output.register(names[m], header);
+            }
+        }
+
+        for (int i = 0; i < rows; i++) {
+            int m = i % mos;
+
+            if (api.equals("handle")) {
+                handles[m].writeRow(values, 0);
+                continue;
+            }
+
+            line.setLength(0);
+            for (int c = 0; c < COLUMNS; c++) {
+                if (c > 0) {
+                    line.append(',');
+                }
+                CSVUtils.appendCSVFormat(line, values[c]);
+            }
+
+            if (api.equals("global")) {
+                synchronized (output) {
+                    output.writeLine(names[m], header, line.toString());
+                }
+            } else if (api.equals("writeLine")) {
+                output.writeLine(names[m], header, line.toString());
+            } else {
+                throw new IllegalArgumentException("Unknown api " + api);
+            }
+        }
+    }
+
+    private static String header() {
+        List<String> columns = new ArrayList<>();
+        for (int c = 0; c < COLUMNS; c++) {
+            columns.add("column" + c);
+        }
+        return String.join(",", columns);
+    }
+}
@@ -0,0 +1,191 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The XML attributes of the open MOs, as parent ID columns of the rows.
+ *
+ * The context follows the tag stack: an MO's attributes are added when its
+ * start tag is pushed and removed when it is popped. The column names
+ * (&lt;MO&gt;_&lt;attribute&gt;) are computed once per MO instead of for every
+ * row written below it.
+ *
+ * Vendor specific rows name a VsDataContainer ancestor after its vsData type,
+ * which is only known after the container's start tag. Those column names are
+ * resolved when the rows ask for them and cached until the type changes.
+ */
+public class ParentIdContext {
+
+    private String[] tags = new String[16];
+
+    /**
+     * First entry of each level.
+     */
+    private int[] levelStarts = new int[17];
+
+    private int levels = 0;
+
+    private String[] keys = new String[32];
+    private String[] columns = new String[32];
+    private String[] values = new String[32];
+
+    /**
+     * Tag each level's vendor column names were resolved with, and the names.
+     */
+    private String[] resolvedTags = new String[16];
+    private String[] resolvedColumns = new String[32];
+
+    private int size = 0;
+
+    /**
+     * Column names by MO and attribute name.
+     */
+    private final Map<String, Map<String, String>> columnNames = new HashMap<>();
+
+    private final ThreeGPPView threeGPPView = new ThreeGPPView();
+
+    private final VendorView vendorView = new VendorView();
+
+    /**
+     * Opens a level for an MO pushed on the tag stack.
+     */
+    public void push(String tag) {
+        if (levels == tags.length) {
+            tags = Arrays.copyOf(tags, levels * 2);
+            resolvedTags = Arrays.copyOf(resolvedTags, levels * 2);
+            levelStarts = Arrays.copyOf(levelStarts, levels * 2 + 1);
+        }
+
+        tags[levels] = tag;
+        resolvedTags[levels] = null;
+        levels++;
+        levelStarts[levels] = size;
+    }
+
+    /**
+     * Sets an attribute of the MO on top of the stack.
+     */
+    public void put(String key, String value) {
+        int start = levelStarts[levels - 1];
+
+        for (int i = start; i < size; i++) {
+            if (keys[i].equals(key)) {
+                values[i] = value;
+                return;
+            }
+        }
+
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            columns = Arrays.copyOf(columns, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+            resolvedColumns = Arrays.copyOf(resolvedColumns, size * 2);
+        }
+
+        keys[size] = key;
+        columns[size] = columnName(tags[levels - 1], key);
+        values[size] = value;
+        resolvedColumns[size] = null;
+        resolvedTags[levels - 1] = null;
+        size++;
+        levelStarts[levels] = size;
+    }
+
+    /**
+     * Closes the level of the MO popped from the tag stack.
+     */
+    public void pop() {
+        levels--;
+        size = levelStarts[levels];
+    }
+
+    public void clear() {
+        levels = 0;
+        size = 0;
+        levelStarts[0] = 0;
+    }
+
+    /**
+     * Parent IDs of a 3GPP MO row: the ancestors named as on the tag stack.
+     *
+     * The returned view is reused and reflects later changes to the context.
+     */
+    public ParentIds threeGPP() {
+        return threeGPPView;
+    }
+
+    /**
+     * Parent IDs of a vendor specific MO row, with VsDataContainer ancestors
+     * named after their vsData type.
+     *
+     * @param vsDataContainerTypes vsData type per VsDataContainer tag
+     */
+    public ParentIds vendor(Map<String, String> vsDataContainerTypes) {
+        for (int level = 0; level < levels; level++) {
+            String tag = tags[level];
+
+            if (tag.startsWith("VsDataContainer")) {
+                tag = String.valueOf(vsDataContainerTypes.get(tag));
+            }
+
+            if (!tag.equals(resolvedTags[level])) {
+                resolvedTags[level] = tag;
+
+                for (int i = levelStarts[level]; i < levelStarts[level + 1]; i++) {
+                    resolvedColumns[i] = columnName(tag, keys[i]);
+                }
+            }
+        }
+
+        return vendorView;
+    }
+
+    private String columnName(String tag, String key) {
+        Map<String, String> names = columnNames.get(tag);
+
+        if (names == null) {
+            names = new HashMap<>();
+            columnNames.put(tag, names);
+        }
+
+        String name = names.get(key);
+
+        if (name == null) {
+            name = tag + "_" + key;
+            names.put(key, name);
+        }
+
+        return name;
+    }
+
+    private abstract class View implements ParentIds {
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public String getValue(int index) {
+            return values[index];
+        }
+    }
+
+    private final class ThreeGPPView extends View {
+
+        @Override
+        public String getColumn(int index) {
+            return columns[index];
+        }
+    }
+
+    private final class VendorView extends View {
+
+        @Override
+        public String getColumn(int index) {
+            return resolvedColumns[index];
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parent ID columns and values of a row, in the order of the enclosing MOs.
+ *
+ * A column can occur more than once when two ancestors produce the same
+ * column name. As with a map, the last value is the one written.
+ */
+public interface ParentIds {
+
+    int size();
+
+    String getColumn(int index);
+
+    String getValue(int index);
+
+    /**
+     * Copies the parent IDs to a map.
+     */
+    default Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < size(); i++) {
+            map.put(getColumn(i), getValue(i));
+        }
+        return map;
+    }
+
+    /**
+     * Parent IDs read from a map, e.g. a spooled row.
+     */
+    final class Mapped implements ParentIds {
+
+        private String[] columns = new String[16];
+
+        private String[] values = new String[16];
+
+        private int size = 0;
+
+        /**
+         * Loads the entries of the map.
+         */
+        public Mapped reset(Map<String, String> parentIds) {
+            size = 0;
+
+            if (parentIds.size() > columns.length) {
+                columns = Arrays.copyOf(columns, parentIds.size() * 2);
+                values = Arrays.copyOf(values, parentIds.size() * 2);
+            }
+
+            for (Map.Entry<String, String> entry : parentIds.entrySet()) {
+                columns[size] = entry.getKey();
+                values[size++] = entry.getValue();
+            }
+
+            return this;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public String getColumn(int index) {
+            return columns[index];
+        }
+
+        @Override
+        public String getValue(int index) {
+            return values[index];
+        }
+    }
+}
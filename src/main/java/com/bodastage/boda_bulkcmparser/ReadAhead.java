@@ -0,0 +1,385 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Reads the inputs on threads of their own, ahead of the parser.
+ *
+ * Each input opened through {@link #open(InputStream)} gets a thread which
+ * reads it, decompressing it where it is compressed, in chunks of a fixed
+ * size into a bounded set of buffers. The parser takes the chunks in order
+ * and hands the buffers back once it has read them, so reading the disk or
+ * the network overlaps with parsing while at most the queue depth of chunks
+ * wait to be parsed. Buffers are reused by the inputs opened later.
+ *
+ * The statistics show where the time goes: the parser waiting for input
+ * means the input is the bottleneck, the reading threads waiting for free
+ * buffers means the parser is. They are added up over all inputs, also when
+ * several parsers share the read-ahead.
+ */
+public class ReadAhead {
+
+    public static final int DEFAULT_DEPTH = 4;
+
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    private static final int MIN_CHUNK_SIZE = 1024;
+
+    private final int depth;
+
+    private final int chunkSize;
+
+    /**
+     * Buffers of closed inputs, for the inputs opened next.
+     */
+    private final ConcurrentLinkedQueue<byte[]> spare = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    private final LongAdder inputs = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder chunks = new LongAdder();
+
+    /**
+     * Nanoseconds the parsers spent waiting for a chunk, and working between chunks.
+     */
+    private final LongAdder parserWaiting = new LongAdder();
+    private final LongAdder parserWorking = new LongAdder();
+
+    /**
+     * Nanoseconds the reading threads spent reading, and waiting for a free buffer.
+     */
+    private final LongAdder readerReading = new LongAdder();
+    private final LongAdder readerWaiting = new LongAdder();
+
+    /**
+     * @param depth number of chunks read ahead of the parser
+     * @param chunkSize number of bytes read into a buffer before it is passed to the parser
+     */
+    public ReadAhead(int depth, int chunkSize) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("The read-ahead depth must be at least 1: " + depth);
+        }
+        if (chunkSize < MIN_CHUNK_SIZE) {
+            throw new IllegalArgumentException("The read-ahead chunk size must be at least " + MIN_CHUNK_SIZE + " bytes: " + chunkSize);
+        }
+
+        this.depth = depth;
+        this.chunkSize = chunkSize;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Starts reading the input ahead. The returned stream closes the input.
+     */
+    public InputStream open(InputStream source) {
+        Stream stream = new Stream(source);
+
+        Thread thread = new Thread(stream::readAhead, "boda-bulkcmparser-readahead-" + threadCount.getAndIncrement());
+        thread.setDaemon(true);
+        stream.thread = thread;
+        thread.start();
+
+        inputs.increment();
+        return stream;
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * Nanoseconds the parsers waited for input.
+     */
+    public long getParserWaitingNanos() {
+        return parserWaiting.sum();
+    }
+
+    /**
+     * Nanoseconds the parsers had input to parse.
+     */
+    public long getParserWorkingNanos() {
+        return parserWorking.sum();
+    }
+
+    /**
+     * Nanoseconds the reading threads spent reading and decompressing.
+     */
+    public long getReaderReadingNanos() {
+        return readerReading.sum();
+    }
+
+    /**
+     * Nanoseconds the reading threads waited for the parsers to free a buffer.
+     */
+    public long getReaderWaitingNanos() {
+        return readerWaiting.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Read-ahead: %d inputs, %.1f MB in %d chunks; parser %.2f s parsing, %.2f s waiting for input; reader %.2f s reading, %.2f s waiting for free buffers",
+                inputs.sum(), getBytes() / (1024.0 * 1024.0), chunks.sum(),
+                getParserWorkingNanos() / 1e9, getParserWaitingNanos() / 1e9, getReaderReadingNanos() / 1e9, getReaderWaitingNanos() / 1e9);
+    }
+
+    /**
+     * Bytes read into a buffer, or the end of the input, or the error which ended it.
+     */
+    private static final class Chunk {
+
+        static final Chunk END = new Chunk(new byte[0], 0, null);
+
+        final byte[] bytes;
+
+        final int length;
+
+        final @Nullable Throwable error;
+
+        Chunk(byte[] bytes, int length, @Nullable Throwable error) {
+            this.bytes = bytes;
+            this.length = length;
+            this.error = error;
+        }
+    }
+
+    /**
+     * The chunks of an input, read by its own thread and consumed by the parser.
+     */
+    private final class Stream extends InputStream {
+
+        private final InputStream source;
+
+        /**
+         * Buffers the parser has read, for the reading thread to fill again.
+         */
+        private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(depth + 1);
+
+        /**
+         * Chunks read and not taken by the parser yet. Bounded by the number of buffers.
+         */
+        private final BlockingQueue<Chunk> filled = new LinkedBlockingQueue<>();
+
+        /**
+         * Buffers the reading thread has taken, the parser's current chunk
+         * included. Only used by the reading thread.
+         */
+        private int allocated = 0;
+
+        @Nullable
+        Thread thread;
+
+        private volatile boolean closed = false;
+
+        @Nullable
+        private Chunk current = null;
+
+        private int position = 0;
+
+        private boolean ended = false;
+
+        private final long opened = System.nanoTime();
+
+        private long waiting = 0;
+
+        Stream(InputStream source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return next() ? current.bytes[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!next()) {
+                return -1;
+            }
+
+            Chunk chunk = current;
+            int n = Math.min(len, chunk.length - position);
+
+            System.arraycopy(chunk.bytes, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            Chunk chunk = current;
+            return chunk != null ? chunk.length - position : 0;
+        }
+
+        /**
+         * Stops the reading thread, waits for it to close the input and keeps the buffers for other inputs.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            Thread thread = this.thread;
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while closing the input");
+            }
+
+            parserWaiting.add(waiting);
+            parserWorking.add(System.nanoTime() - opened - waiting);
+
+            if (current != null) {
+                spare.add(current.bytes);
+                current = null;
+            }
+            for (Chunk chunk : filled) {
+                if (chunk.length > 0) {
+                    spare.add(chunk.bytes);
+                }
+            }
+            spare.addAll(free);
+        }
+
+        /**
+         * Moves to the next chunk once the current one has been read, waiting for it if it is not read yet.
+         *
+         * @return false at the end of the input
+         */
+        private boolean next() throws IOException {
+            Chunk chunk = current;
+
+            if (chunk != null && position < chunk.length) {
+                return true;
+            }
+            if (ended) {
+                return false;
+            }
+
+            if (chunk != null) {
+                free.add(chunk.bytes);
+                current = null;
+            }
+
+            chunk = filled.poll();
+            if (chunk == null) {
+                long start = System.nanoTime();
+                try {
+                    chunk = filled.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for input");
+                } finally {
+                    waiting += System.nanoTime() - start;
+                }
+            }
+
+            Throwable error = chunk.error;
+            if (error != null) {
+                ended = true;
+                throw new IOException(error instanceof IOException ? error.getMessage() : error.toString(), error);
+            }
+            if (chunk == Chunk.END) {
+                ended = true;
+                return false;
+            }
+
+            current = chunk;
+            position = 0;
+            return true;
+        }
+
+        /**
+         * Body of the reading thread: fills buffers until the end of the
+         * input, an error or the stream is closed, then closes the input.
+         */
+        void readAhead() {
+            Chunk last = Chunk.END;
+
+            try {
+                while (!closed) {
+                    byte[] buffer = takeBuffer();
+                    long start = System.nanoTime();
+                    int length = 0;
+                    int n;
+
+                    try {
+                        while (length < buffer.length && (n = source.read(buffer, length, buffer.length - length)) >= 0) {
+                            length += n;
+                        }
+                    } finally {
+                        readerReading.add(System.nanoTime() - start);
+
+                        if (length > 0) {																	//Also the bytes read before an error
+                            bytes.add(length);
+                            chunks.increment();
+                            filled.add(new Chunk(buffer, length, null));
+                        } else {
+                            free.add(buffer);
+                        }
+                    }
+
+                    if (length < buffer.length) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                //Closed by the parser
+            } catch (Throwable e) {
+                last = new Chunk(new byte[0], 0, e);															//Thrown to the parser when it gets to it
+            } finally {
+                filled.add(last);
+                IOUtils.closeQuietly(source);
+            }
+        }
+
+        /**
+         * A free buffer, a new one while the input has less than depth + 1, or
+         * the next buffer the parser frees.
+         */
+        private byte[] takeBuffer() throws InterruptedException {
+            byte[] buffer = free.poll();
+
+            if (buffer == null && allocated <= depth) {
+                allocated++;
+                buffer = spare.poll();
+                return buffer != null ? buffer : new byte[chunkSize];
+            }
+
+            if (buffer == null) {
+                long start = System.nanoTime();
+                try {
+                    buffer = free.take();
+                } finally {
+                    readerWaiting.add(System.nanoTime() - start);
+                }
+            }
+
+            return buffer;
+        }
+    }
+}
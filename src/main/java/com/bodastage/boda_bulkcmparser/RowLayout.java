@@ -0,0 +1,234 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Column layout of the rows of an MO.
+ *
+ * A row has the FileName and varDateTime columns, the parent ID columns and
+ * the MO's parameter columns in sorted order. The layout is compiled from the
+ * MO's columns once and reused for every row until the columns change, so the
+ * header and the column order are not rebuilt per row. Values are placed into
+ * a reusable array by column index and handed to the output, which escapes
+ * and encodes them in one pass.
+ *
+ * A layout is opened on the output file for its header once, and its rows
+ * are written through the output handle.
+ */
+public class RowLayout {
+
+    /**
+     * The FileName and varDateTime columns.
+     */
+    private static final int FIXED_COLUMNS = 2;
+
+    private final String header;
+
+    /**
+     * Parent ID columns of the rows the layout was compiled for, in the
+     * order they came in. Only used for 3GPP MOs.
+     */
+    private final String[] parentIdSequence;
+
+    /**
+     * Parent ID columns, in output order.
+     */
+    private final String[] parentIdColumns;
+
+    /**
+     * Whether the parent IDs of a row map one to one to the parent ID columns.
+     */
+    private final boolean parentIdsInOrder;
+
+    private final Map<String, Integer> parentIdIndices = new HashMap<>();
+
+    /**
+     * Parameter columns, in output order.
+     */
+    private final String[] columns;
+
+    /**
+     * Index of each parameter column in {@link #columns}.
+     */
+    private final Map<String, Integer> columnIndices = new HashMap<>();
+
+    /**
+     * Number of parameter and parent ID columns in the schema when the layout was compiled.
+     */
+    private final int schemaColumns;
+
+    /**
+     * Values of the row being written, by column.
+     */
+    private final @Nullable CharSequence[] fields;
+
+    private BulkOutputWriter.@Nullable Handle output;
+
+    private RowLayout(String[] parentIdSequence, String[] parentIdColumns, List<String> columns, int schemaColumns) {
+        this.parentIdSequence = parentIdSequence;
+        this.parentIdColumns = parentIdColumns;
+        this.parentIdsInOrder = Arrays.equals(parentIdSequence, parentIdColumns);
+        this.columns = columns.toArray(new String[columns.size()]);
+        this.schemaColumns = schemaColumns;
+        this.fields = new CharSequence[FIXED_COLUMNS + parentIdColumns.length + this.columns.length];
+
+        StringBuilder sb = new StringBuilder("FileName,varDateTime");
+        for (int i = 0; i < parentIdColumns.length; i++) {
+            sb.append(',').append(parentIdColumns[i]);
+            parentIdIndices.put(parentIdColumns[i], i);
+        }
+        for (int i = 0; i < this.columns.length; i++) {
+            sb.append(',').append(this.columns[i]);
+            columnIndices.put(this.columns[i], i);
+        }
+        header = sb.toString();
+    }
+
+    /**
+     * Layout of a 3GPP MO, whose parent IDs are the XML attributes of the
+     * enclosing MOs. Attributes which are also parent IDs are left out.
+     */
+    public static RowLayout threeGPP(ParentIds parentIds, @Nullable ColumnSet attributes) {
+        String[] sequence = new String[parentIds.size()];
+        Set<String> parentIdColumns = new LinkedHashSet<>();
+
+        for (int i = 0; i < sequence.length; i++) {
+            sequence[i] = parentIds.getColumn(i);
+            parentIdColumns.add(sequence[i]);
+        }
+
+        List<String> columns = attributes == null ? Arrays.<String>asList() : CSVUtils.sortedColumns(attributes);
+
+        columns.removeIf(c -> parentIdColumns.contains(c) || "filename".equalsIgnoreCase(c) || "vardatetime".equalsIgnoreCase(c));
+
+        return new RowLayout(sequence, parentIdColumns.toArray(new String[parentIdColumns.size()]), columns,
+                attributes == null ? 0 : attributes.size());
+    }
+
+    /**
+     * Layout of a vendor specific MO.
+     *
+     * @param skipParentIds leave out parameters which are also parent IDs, for columns from a parameter file
+     */
+    public static RowLayout vendor(ColumnSet parentIds, ColumnSet parameters, boolean skipParentIds) {
+        List<String> columns = CSVUtils.sortedColumns(parameters);
+
+        columns.removeIf(c -> (skipParentIds && parentIds.contains(c)) || "FileName".equals(c) || "varDateTime".equals(c));
+
+        return new RowLayout(new String[0], parentIds.asList().toArray(new String[parentIds.size()]), columns,
+                parentIds.size() + parameters.size());
+    }
+
+    public String getHeader() {
+        return header;
+    }
+
+    /**
+     * Registers the layout's header for the MO with the output writer.
+     */
+    public RowLayout open(BulkOutputWriter writer, String mo) {
+        output = writer.register(mo, header);
+        return this;
+    }
+
+    /**
+     * Returns the output handle the layout was opened on.
+     */
+    public BulkOutputWriter.Handle getOutput() {
+        BulkOutputWriter.Handle handle = output;
+        if (handle == null) {
+            throw new IllegalStateException("Layout is not open");
+        }
+        return handle;
+    }
+
+    /**
+     * Whether the layout is still valid for a 3GPP row with the parent IDs.
+     */
+    public boolean matchesThreeGPP(ParentIds parentIds, @Nullable ColumnSet attributes) {
+        if (schemaColumns != (attributes == null ? 0 : attributes.size()) || parentIdSequence.length != parentIds.size()) {
+            return false;
+        }
+
+        for (int i = 0; i < parentIdSequence.length; i++) {
+            if (!parentIds.getColumn(i).equals(parentIdSequence[i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Whether the layout is still valid for the columns of a vendor specific MO.
+     */
+    public boolean matchesVendor(ColumnSet parentIds, ColumnSet parameters) {
+        return schemaColumns == parentIds.size() + parameters.size();
+    }
+
+    /**
+     * Writes a 3GPP row to the output handle.
+     */
+    public void writeThreeGPP(String fileName, String dateTime, ParentIds parentIds, @Nullable RowValues attrs) {
+        startRow(fileName, dateTime);
+
+        if (parentIdsInOrder) {
+            for (int i = 0; i < parentIds.size(); i++) {
+                fields[FIXED_COLUMNS + i] = parentIds.getValue(i);
+            }
+        } else {
+            putParentIds(parentIds);
+        }
+
+        endRow(attrs);
+    }
+
+    /**
+     * Writes a vendor specific row to the output handle.
+     */
+    public void writeVendor(String fileName, String dateTime, ParentIds parentIds, RowValues parameters) {
+        startRow(fileName, dateTime);
+        putParentIds(parentIds);
+        endRow(parameters);
+    }
+
+    private void startRow(String fileName, String dateTime) {
+        fields[0] = fileName;
+        fields[1] = dateTime;
+    }
+
+    /**
+     * Places the parent IDs by column, the last value of a repeated column wins.
+     */
+    private void putParentIds(ParentIds parentIds) {
+        for (int i = 0; i < parentIds.size(); i++) {
+            Integer index = parentIdIndices.get(parentIds.getColumn(i));
+            if (index != null) {
+                fields[FIXED_COLUMNS + index] = parentIds.getValue(i);
+            }
+        }
+    }
+
+    private void endRow(@Nullable RowValues parameters) {
+        if (parameters != null) {
+            int first = FIXED_COLUMNS + parentIdColumns.length;
+
+            for (int i = 0; i < parameters.size(); i++) {
+                Integer index = columnIndices.get(parameters.getName(i));
+                if (index != null) {
+                    fields[first + index] = parameters.getValue(i);
+                }
+            }
+        }
+
+        getOutput().writeRow(fields, FIXED_COLUMNS);											//FileName and varDateTime are written as they are
+        Arrays.fill(fields, null);
+    }
+}
@@ -0,0 +1,214 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Temporary on-disk store for rows captured during a single-pass parse.
+ *
+ * Rows are kept in their sparse form, i.e. only the parent IDs and parameters
+ * the MO instance actually had, so that the header can be computed once the
+ * whole input has been seen. MO, file and column names are written once and
+ * then referenced by id.
+ *
+ * The spools of sharded parsing are kept in the work directory and replayed
+ * by the merging process, see {@link ShardDirectory}.
+ */
+public class RowSpool implements Closeable {
+
+    /**
+     * Row of a 3GPP defined Managed Object.
+     */
+    public static final byte THREEGPP_ROW = 0;
+
+    /**
+     * Row of a vendor specific vsData Managed Object.
+     */
+    public static final byte VENDOR_ROW = 1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final File file;
+
+    /**
+     * Set if the file is kept when the spool is closed.
+     */
+    private final boolean keep;
+
+    private DataOutputStream out;
+
+    /**
+     * Ids of the strings already written to the spool.
+     */
+    private final Map<String, Integer> symbols = new HashMap<>();
+
+    private long rowCount = 0;
+
+    public RowSpool(File directory) throws IOException {
+        this(File.createTempFile("boda-bulkcmparser-", ".spool", directory), false, true);
+        file.deleteOnExit();
+    }
+
+    /**
+     * @param keep keep the file when the spool is closed
+     * @param writing create the file for appending rows, otherwise the rows of the file can only be replayed
+     */
+    private RowSpool(File file, boolean keep, boolean writing) throws IOException {
+        this.file = file;
+        this.keep = keep;
+        out = writing ? new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE)) : null;
+    }
+
+    /**
+     * Creates a spool in the file, which is kept when the spool is closed so
+     * that another process can replay the rows with {@link #open(File)}.
+     */
+    public static RowSpool create(File file) throws IOException {
+        return new RowSpool(file, true, true);
+    }
+
+    /**
+     * Opens the rows of a spool created with {@link #create(File)} for replaying.
+     */
+    public static RowSpool open(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        return new RowSpool(file, true, false);
+    }
+
+    /**
+     * Number of rows appended.
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Appends a row.
+     */
+    public void append(byte kind, String mo, String fileName, Map<String, String> parentIds, Map<String, String> values) throws IOException {
+        out.writeByte(kind);
+        writeSymbol(mo);
+        writeSymbol(fileName);
+        writeEntries(parentIds);
+        writeEntries(values);
+        rowCount++;
+    }
+
+    /**
+     * Closes the spool for appending, keeping the rows for {@link #replay}.
+     */
+    public void finish() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Reads back the rows in the order they were appended.
+     *
+     * The maps passed to the consumer are reused between rows.
+     */
+    public void replay(RowConsumer consumer) throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+
+        List<String> strings = new ArrayList<>();
+        Map<String, String> parentIds = new LinkedHashMap<>();
+        Map<String, String> values = new LinkedHashMap<>();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+            for (int kind = in.read(); kind >= 0; kind = in.read()) {
+                String mo = readSymbol(in, strings);
+                String fileName = readSymbol(in, strings);
+                readEntries(in, strings, parentIds);
+                readEntries(in, strings, values);
+
+                consumer.accept((byte) kind, mo, fileName, parentIds, values);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOUtils.closeQuietly(out);
+        out = null;
+
+        if (!keep) {
+            file.delete();
+        }
+    }
+
+    private void writeEntries(Map<String, String> entries) throws IOException {
+        if (entries == null) {
+            IOUtils.writeVarInt(out, 0);
+            return;
+        }
+
+        IOUtils.writeVarInt(out, entries.size());
+
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            writeSymbol(entry.getKey());
+            IOUtils.writeString(out, entry.getValue());
+        }
+    }
+
+    private void readEntries(DataInputStream in, List<String> strings, Map<String, String> entries) throws IOException {
+        entries.clear();
+
+        for (int n = IOUtils.readVarInt(in); n > 0; n--) {
+            String key = readSymbol(in, strings);
+            entries.put(key, IOUtils.readString(in));
+        }
+    }
+
+    /**
+     * Writes the id of a repeated string, followed by the string itself the
+     * first time it is seen.
+     */
+    private void writeSymbol(String s) throws IOException {
+        Integer id = symbols.get(s);
+
+        if (id != null) {
+            IOUtils.writeVarInt(out, id);
+            return;
+        }
+
+        IOUtils.writeVarInt(out, symbols.size());
+        IOUtils.writeString(out, s);
+        symbols.put(s, symbols.size());
+    }
+
+    private String readSymbol(DataInputStream in, List<String> strings) throws IOException {
+        int id = IOUtils.readVarInt(in);
+
+        if (id == strings.size()) {
+            strings.add(IOUtils.readString(in));
+        }
+
+        return strings.get(id);
+    }
+
+    /**
+     * Receives spooled rows.
+     */
+    public interface RowConsumer {
+        void accept(byte kind, String mo, String fileName, Map<String, String> parentIds, Map<String, String> values);
+    }
+}
@@ -0,0 +1,78 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parameter names and values of a row, in the order they were found.
+ */
+public interface RowValues {
+
+    int size();
+
+    String getName(int index);
+
+    /**
+     * The value, or null if the parameter has none.
+     */
+    CharSequence getValue(int index);
+
+    /**
+     * Copies the values to a map.
+     */
+    default Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < size(); i++) {
+            CharSequence value = getValue(i);
+            map.put(getName(i), value == null ? null : value.toString());
+        }
+        return map;
+    }
+
+    /**
+     * Row values read from a map, e.g. a spooled row.
+     */
+    final class Mapped implements RowValues {
+
+        private String[] names = new String[16];
+
+        private String[] values = new String[16];
+
+        private int size = 0;
+
+        /**
+         * Loads the entries of the map.
+         */
+        public Mapped reset(Map<String, String> rowValues) {
+            size = 0;
+
+            if (rowValues.size() > names.length) {
+                names = Arrays.copyOf(names, rowValues.size() * 2);
+                values = Arrays.copyOf(values, rowValues.size() * 2);
+            }
+
+            for (Map.Entry<String, String> entry : rowValues.entrySet()) {
+                names[size] = entry.getKey();
+                values[size++] = entry.getValue();
+            }
+
+            return this;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public String getName(int index) {
+            return names[index];
+        }
+
+        @Override
+        public CharSequence getValue(int index) {
+            return values[index];
+        }
+    }
+}
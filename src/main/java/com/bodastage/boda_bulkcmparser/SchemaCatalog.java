@@ -0,0 +1,166 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+/**
+ * The Managed Object columns discovered while parsing.
+ *
+ * The catalog can be saved after a run and loaded on later runs so that the
+ * parameter extraction pass can be skipped.
+ *
+ * File format, one line per MO:
+ * <pre>
+ * 3GPP&lt;TAB&gt;mo&lt;TAB&gt;column,column,...
+ * VENDOR&lt;TAB&gt;vsDataMo&lt;TAB&gt;column,column,...
+ * PARENTIDS&lt;TAB&gt;vsDataMo&lt;TAB&gt;column,column,...
+ * </pre>
+ */
+public class SchemaCatalog {
+
+    private static final String HEADER = "#boda-bulkcmparser schema catalog";
+
+    private static final String THREEGPP = "3GPP";
+    private static final String VENDOR = "VENDOR";
+    private static final String PARENT_IDS = "PARENTIDS";
+
+    /**
+     * Vendor specific MO parameters.
+     */
+    private final GrowingHashMap<String, ColumnSet> moColumns = new GrowingHashMap<>(ColumnSet::new);
+
+    /**
+     * Parent IDs of the vendor specific MOs.
+     */
+    private final GrowingHashMap<String, ColumnSet> moColumnsParentIds = new GrowingHashMap<>(ColumnSet::new);
+
+    /**
+     * 3GPP MO attributes.
+     */
+    private final GrowingHashMap<String, ColumnSet> moThreeGPPAttributes = new GrowingHashMap<>(ColumnSet::new);
+
+    public GrowingHashMap<String, ColumnSet> getMoColumns() {
+        return moColumns;
+    }
+
+    public GrowingHashMap<String, ColumnSet> getMoColumnsParentIds() {
+        return moColumnsParentIds;
+    }
+
+    public GrowingHashMap<String, ColumnSet> getMoThreeGPPAttributes() {
+        return moThreeGPPAttributes;
+    }
+
+    public boolean isEmpty() {
+        return moColumns.isEmpty() && moThreeGPPAttributes.isEmpty();
+    }
+
+    /**
+     * Adds the MOs and columns of another catalog which this catalog does not
+     * have yet, keeping the order in which they were first found.
+     */
+    public void merge(SchemaCatalog other) {
+        merge(moColumns, other.moColumns);
+        merge(moColumnsParentIds, other.moColumnsParentIds);
+        merge(moThreeGPPAttributes, other.moThreeGPPAttributes);
+    }
+
+    /**
+     * Returns a copy which can be changed independently of this catalog.
+     */
+    public SchemaCatalog copy() {
+        SchemaCatalog copy = new SchemaCatalog();
+        copy.merge(this);
+        return copy;
+    }
+
+    private static void merge(GrowingHashMap<String, ColumnSet> target, Map<String, ColumnSet> source) {
+        for (Map.Entry<String, ColumnSet> entry : source.entrySet()) {
+            target.grow(entry.getKey()).addAll(entry.getValue().asList());
+        }
+    }
+
+    /**
+     * Adds the columns of a catalog file to this catalog.
+     */
+    public void load(String filename) throws IOException {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+
+            while ((line = br.readLine()) != null) {
+                lineNumber++;
+
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] parts = line.split("\t", -1);
+
+                if (parts.length != 3) {
+                    throw new IOException("Invalid schema catalog entry at " + filename + ":" + lineNumber);
+                }
+
+                ColumnSet columns;
+
+                if (THREEGPP.equals(parts[0])) {
+                    columns = moThreeGPPAttributes.grow(parts[1]);
+                } else if (VENDOR.equals(parts[0])) {
+                    columns = moColumns.grow(parts[1]);
+                } else if (PARENT_IDS.equals(parts[0])) {
+                    columns = moColumnsParentIds.grow(parts[1]);
+                } else {
+                    throw new IOException("Unknown schema catalog entry " + parts[0] + " at " + filename + ":" + lineNumber);
+                }
+
+                if (!parts[2].isEmpty()) {
+                    for (String column : parts[2].split(",")) {
+                        columns.add(column);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the catalog to a file.
+     *
+     * The file is replaced only once the new catalog has been completely written.
+     */
+    public void save(String filename) throws IOException {
+        File target = new File(filename).getAbsoluteFile();
+        File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            writer.write(HEADER);
+            writer.newLine();
+
+            write(writer, THREEGPP, moThreeGPPAttributes);
+            write(writer, VENDOR, moColumns);
+            write(writer, PARENT_IDS, moColumnsParentIds);
+        }
+
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void write(BufferedWriter writer, String type, Map<String, ColumnSet> map) throws IOException {
+        for (Map.Entry<String, ColumnSet> entry : map.entrySet()) {
+            writer.write(type);
+            writer.write('\t');
+            writer.write(entry.getKey());
+            writer.write('\t');
+            writer.write(String.join(",", entry.getValue()));
+            writer.newLine();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Work directory shared by parser processes which parse the files of a
+ * directory together, on one machine or on several machines sharing the
+ * directory.
+ *
+ * A worker claims an input file by creating its claim file, which only one
+ * process can do. It writes the rows of the file in their sparse form and
+ * the columns found to the file's shard, and then marks the shard done. The
+ * merge step combines the columns of all shards and writes their rows with
+ * the combined headers.
+ *
+ * Layout, with a key per input file:
+ * <pre>
+ * claims/key            created by the worker parsing the file, holds its pid@host
+ * shards/key.spool      rows of the file, see {@link RowSpool}
+ * shards/key.catalog    columns of the file, see {@link SchemaCatalog}
+ * shards/key.done       written last, holds the fileFooter dateTime
+ * </pre>
+ *
+ * The claim of a worker which died stays behind and the file is skipped by
+ * the other workers; delete the claim to have the file parsed again.
+ */
+public class ShardDirectory {
+
+    private static final String DATE_TIME = "dateTime";
+
+    private final File claims;
+
+    private final File shards;
+
+    public ShardDirectory(File directory) throws IOException {
+        this.claims = new File(directory, "claims");
+        this.shards = new File(directory, "shards");
+
+        Files.createDirectories(claims.toPath());
+        Files.createDirectories(shards.toPath());
+    }
+
+    /**
+     * Key of an input file of the data source, the same for every worker
+     * wherever the data source is mounted.
+     */
+    public static String key(String dataSource, String file) {
+        Path source = Paths.get(dataSource).toAbsolutePath();
+        Path path = Paths.get(file).toAbsolutePath();
+        String name = Files.isDirectory(source) ? source.relativize(path).toString().replace(File.separatorChar, '/') : path.getFileName().toString();
+
+        return name.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + Integer.toHexString(name.hashCode());		//The hash tells apart names which only differ in the replaced characters
+    }
+
+    /**
+     * Claims the file for this process. Returns false if another process claimed it first.
+     */
+    public boolean claim(String key) throws IOException {
+        try {
+            Files.createFile(new File(claims, key).toPath());
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+
+        Files.write(new File(claims, key).toPath(), ManagementFactory.getRuntimeMXBean().getName().getBytes(StandardCharsets.UTF_8));
+        return true;
+    }
+
+    public boolean isClaimed(String key) {
+        return new File(claims, key).exists();
+    }
+
+    /**
+     * The worker which claimed the file, as pid@host.
+     */
+    public String getClaimant(String key) {
+        try {
+            return new String(Files.readAllBytes(new File(claims, key).toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    public File getSpoolFile(String key) {
+        return new File(shards, key + ".spool");
+    }
+
+    public File getCatalogFile(String key) {
+        return new File(shards, key + ".catalog");
+    }
+
+    /**
+     * Marks the shard of the file done, once its rows and columns have been written.
+     */
+    public void complete(String key, @Nullable String footerDateTime) throws IOException {
+        File done = new File(shards, key + ".done");
+        File tmp = new File(shards, key + ".done.tmp");
+        Properties properties = new Properties();
+
+        if (footerDateTime != null) {
+            properties.setProperty(DATE_TIME, footerDateTime);
+        }
+
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            properties.store(out, null);
+        }
+
+        Files.move(tmp.toPath(), done.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public boolean isComplete(String key) {
+        return new File(shards, key + ".done").isFile();
+    }
+
+    /**
+     * The fileFooter dateTime of a completed shard, null if the file had none.
+     */
+    @Nullable
+    public String getFooterDateTime(String key) throws IOException {
+        Properties properties = new Properties();
+
+        try (InputStream in = new FileInputStream(new File(shards, key + ".done"))) {
+            properties.load(in);
+        }
+
+        return properties.getProperty(DATE_TIME);
+    }
+}
@@ -0,0 +1,162 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Backend for any StAX implementation, read with the cursor API.
+ */
+public class StaxBackend implements XmlBackend {
+
+    /**
+     * Bytes read ahead to find the encoding in the XML declaration.
+     */
+    private static final int DECLARATION_SIZE = 256;
+
+    private final String name;
+
+    private final XMLInputFactory inputFactory;
+
+    /**
+     * Decode UTF-8 documents before passing them to the parser instead of
+     * letting the parser detect the encoding and decode the bytes itself.
+     * Documents declaring another encoding are left to the parser.
+     */
+    private final boolean decodeUtf8;
+
+    private final StreamReaderAttributes attributes = new StreamReaderAttributes();
+
+    public StaxBackend(String name, XMLInputFactory inputFactory, boolean decodeUtf8) {
+        this.name = name;
+        this.inputFactory = inputFactory;
+        this.decodeUtf8 = decodeUtf8;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean parse(InputStream input, AbstractFileParser parser) throws IOException, XMLStreamException {
+        if (decodeUtf8 && !input.markSupported()) {
+            input = new BufferedInputStream(input, DECLARATION_SIZE);
+        }
+
+        XMLStreamReader reader = decodeUtf8 && isUtf8(input)
+                ? inputFactory.createXMLStreamReader(utf8Reader(input))
+                : inputFactory.createXMLStreamReader(input);
+
+        try {
+            read(reader, attributes, parser);
+        } finally {
+            reader.close();
+        }
+
+        return true;
+    }
+
+    /**
+     * Whether the document is UTF-8, or ASCII, judging by its first bytes and
+     * its XML declaration. The input must support mark.
+     */
+    private static boolean isUtf8(InputStream input) throws IOException {
+        byte[] head = new byte[DECLARATION_SIZE];
+        int length = 0;
+        int n;
+
+        input.mark(DECLARATION_SIZE);
+        try {
+            while (length < head.length && (n = input.read(head, length, head.length - length)) >= 0) {
+                length += n;
+            }
+        } finally {
+            input.reset();
+        }
+
+        if (length >= 2 && (head[0] == (byte) 0xFE || head[0] == (byte) 0xFF || head[0] == 0 || head[1] == 0)) {
+            return false;																				//UTF-16 or UTF-32
+        }
+
+        String declaration = new String(head, 0, length, StandardCharsets.ISO_8859_1);
+        int start = declaration.startsWith("\u00ef\u00bb\u00bf") ? 3 : 0;								//UTF-8 byte order mark
+        int end = declaration.indexOf("?>");
+
+        if (!declaration.startsWith("<?xml", start) || end < 0) {
+            return true;
+        }
+
+        int i = declaration.indexOf("encoding", start);
+        if (i < 0 || i > end) {
+            return true;
+        }
+
+        String encoding = declaration.substring(i + 8, end).replaceAll("^\\s*=\\s*[\"']([^\"']*)[\"'][\\s\\S]*$", "$1");
+        return "UTF-8".equalsIgnoreCase(encoding) || "UTF8".equalsIgnoreCase(encoding) || "US-ASCII".equalsIgnoreCase(encoding);
+    }
+
+    /**
+     * Decodes the input as UTF-8, straight from the mapped file where it is
+     * mapped. A byte order mark is skipped. The input must support mark.
+     */
+    private static Reader utf8Reader(InputStream input) throws IOException {
+        if (input instanceof MappedInput) {
+            return ((MappedInput) input).reader();
+        }
+
+        input.mark(3);
+        if (input.read() != 0xEF || input.read() != 0xBB || input.read() != 0xBF) {
+            input.reset();
+        }
+
+        return new InputStreamReader(input, StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT));
+    }
+
+    /**
+     * Passes the events of the reader to the parser until the end of the document.
+     */
+    static void read(XMLStreamReader reader, StreamReaderAttributes attributes, AbstractFileParser parser) throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (!dispatch(reader.next(), reader, attributes, parser)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Passes the current event of the reader to the parser.
+     *
+     * @return false at the end of the document
+     */
+    static boolean dispatch(int eventType, XMLStreamReader reader, StreamReaderAttributes attributes, AbstractFileParser parser) {
+        switch (eventType) {
+            case XMLStreamConstants.START_ELEMENT:
+                parser.startElement(AbstractFileParser.prefixOf(reader.getPrefix()), reader.getLocalName(), attributes.reset(reader));
+                break;
+            case XMLStreamConstants.SPACE:
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+                parser.characters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                parser.endElement(AbstractFileParser.prefixOf(reader.getPrefix()), reader.getLocalName());
+                break;
+            case XMLStreamConstants.END_DOCUMENT:
+                return false;
+        }
+
+        return true;
+    }
+}
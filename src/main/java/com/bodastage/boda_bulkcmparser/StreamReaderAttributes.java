@@ -0,0 +1,67 @@
+package com.bodastage.boda_bulkcmparser;
+
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Attributes of the start element an XMLStreamReader is positioned on.
+ *
+ * The attributes are read from the reader in the order XMLEventReader used to
+ * return them, see {@link AttributeList#eventReaderOrder(int[], int, int[])}.
+ */
+public class StreamReaderAttributes implements ElementAttributes {
+
+    private XMLStreamReader reader;
+
+    private int count = 0;
+
+    private int[] order = new int[8];
+
+    private int[] hashes = new int[8];
+
+    /**
+     * Positions on the current start element of the reader.
+     */
+    public StreamReaderAttributes reset(XMLStreamReader reader) {
+        this.reader = reader;
+        count = reader.getAttributeCount();
+
+        if (count > 1) {
+            if (count > order.length) {
+                order = new int[count * 2];
+                hashes = new int[count * 2];
+            }
+
+            for (int i = 0; i < count; i++) {
+                String ns = reader.getAttributeNamespace(i);
+                hashes[i] = (ns == null ? 0 : ns.hashCode()) ^ reader.getAttributeLocalName(i).hashCode();
+            }
+
+            AttributeList.eventReaderOrder(hashes, count, order);
+        } else {
+            order[0] = 0;
+        }
+
+        return this;
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return count;
+    }
+
+    @Override
+    public String getAttributePrefix(int index) {
+        String prefix = reader.getAttributePrefix(order[index]);
+        return prefix == null ? "" : prefix;
+    }
+
+    @Override
+    public String getAttributeLocalName(int index) {
+        return reader.getAttributeLocalName(order[index]);
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        return reader.getAttributeValue(order[index]);
+    }
+}
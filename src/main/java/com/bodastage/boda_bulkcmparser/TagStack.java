@@ -0,0 +1,132 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unsynchronized stack of the open MO tags.
+ *
+ * Nested MOs with the same name are pushed with a numeric suffix, e.g.
+ * SubNetwork_2. The stack counts the entries per name and per suffixed base
+ * name as they are pushed and popped, so {@link #occurrences(String)} and
+ * {@link #contains(Object)} do not scan the stack.
+ */
+public class TagStack {
+
+    private String[] tags = new String[16];
+
+    private int size = 0;
+
+    /**
+     * Number of entries per name.
+     */
+    private final Map<String, Counter> exact = new HashMap<>();
+
+    /**
+     * Number of entries per name with the _&lt;digits&gt; suffix removed, for
+     * the entries which have such a suffix.
+     */
+    private final Map<String, Counter> suffixed = new HashMap<>();
+
+    public void push(String tag) {
+        if (size == tags.length) {
+            tags = Arrays.copyOf(tags, size * 2);
+        }
+        tags[size++] = tag;
+
+        counter(exact, tag).count++;
+
+        String base = baseName(tag);
+        if (base != null) {
+            counter(suffixed, base).count++;
+        }
+    }
+
+    public String pop() {
+        String tag = peek();
+        tags[--size] = null;
+
+        exact.get(tag).count--;
+
+        String base = baseName(tag);
+        if (base != null) {
+            suffixed.get(base).count--;
+        }
+
+        return tag;
+    }
+
+    public String peek() {
+        if (size == 0) {
+            throw new IllegalStateException("Tag stack is empty");
+        }
+        return tags[size - 1];
+    }
+
+    public String get(int index) {
+        if (index >= size) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return tags[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(Object tag) {
+        Counter counter = exact.get(tag);
+        return counter != null && counter.count > 0;
+    }
+
+    /**
+     * Number of entries which are the name or the name followed by _&lt;digits&gt;.
+     */
+    public int occurrences(String tag) {
+        Counter e = exact.get(tag);
+        Counter s = suffixed.get(tag);
+        return (e == null ? 0 : e.count) + (s == null ? 0 : s.count);
+    }
+
+    public void clear() {
+        Arrays.fill(tags, 0, size, null);
+        size = 0;
+        exact.clear();
+        suffixed.clear();
+    }
+
+    /**
+     * Returns the name without its _&lt;digits&gt; suffix, or null if it has none.
+     */
+    private static String baseName(String tag) {
+        int i = tag.length() - 1;
+
+        while (i >= 0 && tag.charAt(i) >= '0' && tag.charAt(i) <= '9') {
+            i--;
+        }
+
+        if (i == tag.length() - 1 || i < 1 || tag.charAt(i) != '_') {
+            return null;
+        }
+
+        return tag.substring(0, i);
+    }
+
+    private static Counter counter(Map<String, Counter> counters, String tag) {
+        Counter counter = counters.get(tag);
+        if (counter == null) {
+            counter = new Counter();
+            counters.put(tag, counter);
+        }
+        return counter;
+    }
+
+    private static final class Counter {
+        int count;
+    }
+}
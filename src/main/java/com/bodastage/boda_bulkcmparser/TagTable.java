@@ -0,0 +1,132 @@
+package com.bodastage.boda_bulkcmparser;
+
+/**
+ * Symbol table of the element names in a Bulk CM file.
+ *
+ * Each distinct (prefix, local name) pair is classified once when it is
+ * first seen, so the handlers dispatch on the kind of the tag instead of
+ * testing the name on every event.
+ */
+public class TagTable {
+
+    /**
+     * What an element is in the Bulk CM structure.
+     */
+    public enum Kind {
+        /**
+         * xn:VsDataContainer, matched ignoring case.
+         */
+        VS_DATA_CONTAINER,
+
+        /**
+         * Vendor specific data type, vsData&lt;Type&gt; not in the xn namespace.
+         */
+        VS_DATA_TYPE,
+
+        /**
+         * xn:attributes, holding the attributes of an MO.
+         */
+        ATTRIBUTES,
+
+        /**
+         * A 3GPP MO, or an attribute when inside xn:attributes or a vendor
+         * data type.
+         */
+        ELEMENT
+    }
+
+    public static final class Tag {
+
+        public final String prefix;
+
+        public final String localName;
+
+        public final Kind kind;
+
+        /**
+         * Whether this is the fileFooter, which has the dateTime of the file.
+         */
+        public final boolean fileFooter;
+
+        Tag(String prefix, String localName) {
+            this.prefix = prefix;
+            this.localName = localName;
+            this.kind = classify(prefix, localName);
+            this.fileFooter = "fileFooter".equals(localName);
+        }
+
+        private static Kind classify(String prefix, String localName) {
+            if ("VsDataContainer".equalsIgnoreCase(localName)) {
+                return Kind.VS_DATA_CONTAINER;
+            }
+            if (!"xn".equalsIgnoreCase(prefix) && localName.startsWith("vsData")) {
+                return Kind.VS_DATA_TYPE;
+            }
+            if ("attributes".equals(localName)) {
+                return Kind.ATTRIBUTES;
+            }
+            return Kind.ELEMENT;
+        }
+    }
+
+    private Tag[] tags = new Tag[256];
+
+    private int size = 0;
+
+    /**
+     * Returns the tag for the name, adding it on first use.
+     */
+    public Tag get(String prefix, String localName) {
+        int mask = tags.length - 1;
+        int slot = hash(prefix, localName) & mask;
+
+        for (Tag tag = tags[slot]; tag != null; tag = tags[slot]) {
+            if (equals(tag.localName, localName) && equals(tag.prefix, prefix)) {
+                return tag;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        Tag tag = new Tag(prefix, localName);
+        tags[slot] = tag;
+
+        if (++size > tags.length / 2) {
+            rehash();
+        }
+
+        return tag;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void rehash() {
+        Tag[] oldTags = tags;
+        tags = new Tag[oldTags.length * 2];
+        int mask = tags.length - 1;
+
+        for (Tag tag : oldTags) {
+            if (tag != null) {
+                int slot = hash(tag.prefix, tag.localName) & mask;
+                while (tags[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                tags[slot] = tag;
+            }
+        }
+    }
+
+    private static int hash(String prefix, String localName) {
+        int h = prefix.hashCode() * 31 + localName.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Names usually come from the parser's own symbol table, so most matches
+     * are the same String instance.
+     */
+    private static boolean equals(String a, String b) {
+        return a == b || a.equals(b);
+    }
+}
@@ -0,0 +1,30 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * XML parser used to read the input files.
+ *
+ * A backend reads a document and passes its elements and text to the
+ * parser's handlers. Backends keep reusable state and are used by one parser
+ * at a time. See {@link XmlBackends} for the available implementations.
+ */
+public interface XmlBackend {
+
+    /**
+     * Name the backend is selected by.
+     */
+    String getName();
+
+    /**
+     * Parses the document.
+     *
+     * @return false if the backend does not support the document. No events
+     *         have been produced in this case and the caller should parse
+     *         the document with another backend.
+     */
+    boolean parse(InputStream input, AbstractFileParser parser) throws IOException, XMLStreamException;
+}
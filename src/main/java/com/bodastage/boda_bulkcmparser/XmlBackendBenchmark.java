@@ -0,0 +1,135 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the same file through each XML backend and reports the throughput and
+ * the memory allocated per MB of input.
+ *
+ * The events are passed to handlers which only count them, so the numbers are
+ * for reading the XML alone.
+ *
+ * Usage: XmlBackendBenchmark file.xml [backend...] [-runs=N]
+ */
+public class XmlBackendBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: XmlBackendBenchmark <file.xml> [backend...] [-runs=N]");
+            System.exit(1);
+        }
+
+        String file = args[0];
+        int runs = 3;
+        List<String> backends = new ArrayList<>();
+
+        for (String arg : Arrays.asList(args).subList(1, args.length)) {
+            if (arg.startsWith("-runs=")) {
+                runs = Integer.parseInt(arg.substring("-runs=".length()));
+            } else {
+                backends.add(arg);
+            }
+        }
+
+        if (backends.isEmpty()) {
+            backends.addAll(XmlBackends.names());
+        }
+
+        double megabytes = new File(file).length() / (1024.0 * 1024.0);
+        boolean measureAllocation = allocationSupported();
+
+        System.out.println(String.format("%s: %.1f MB, %d runs", file, megabytes, runs));
+        System.out.println(String.format("%-12s %10s %10s %14s %12s", "backend", "best ms", "MB/s", "alloc MB/MB", "events"));
+
+        for (String name : backends) {
+            XmlBackend backend;
+            try {
+                backend = XmlBackends.create(name);
+            } catch (IllegalArgumentException e) {
+                System.out.println(String.format("%-12s %s", name, e.getMessage()));
+                continue;
+            }
+
+            EventCounter counter = new EventCounter(backend);
+            counter.parseFile(file);                                                            //Warm up
+
+            long best = Long.MAX_VALUE;
+            long allocated = 0;
+
+            for (int i = 0; i < runs; i++) {
+                counter.events = 0;
+
+                long bytesBefore = allocatedBytes();
+                long start = System.nanoTime();
+                counter.parseFile(file);
+                best = Math.min(best, System.nanoTime() - start);
+                allocated += allocatedBytes() - bytesBefore;
+            }
+
+            double seconds = best / 1e9;
+            String allocation = !measureAllocation ? "n/a" : String.format("%.2f", allocated / (1024.0 * 1024.0) / runs / megabytes);
+
+            System.out.println(String.format("%-12s %10d %10.1f %14s %12d", name, best / 1000000, megabytes / seconds, allocation, counter.events));
+        }
+    }
+
+    /**
+     * Whether the JVM measures the bytes allocated by each thread.
+     */
+    private static boolean allocationSupported() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        return threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemoryEnabled();
+    }
+
+    /**
+     * Bytes allocated by the current thread, or 0 if the JVM does not measure
+     * it.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        return 0;
+    }
+
+    /**
+     * Counts the events and touches the values a parser would read.
+     */
+    private static class EventCounter extends AbstractFileParser {
+
+        long events = 0;
+
+        EventCounter(XmlBackend backend) {
+            setXmlBackend(backend);
+        }
+
+        @Override
+        protected void onStartElement(String prefix, String localName, ElementAttributes attributes) {
+            for (int i = 0; i < attributes.getAttributeCount(); i++) {
+                attributes.getAttributeValue(i);
+            }
+            events++;
+        }
+
+        @Override
+        protected void onCharacters(char[] text, int start, int length) {
+            events++;
+        }
+
+        @Override
+        protected void onEndElement(String prefix, String localName) {
+            events++;
+        }
+    }
+}
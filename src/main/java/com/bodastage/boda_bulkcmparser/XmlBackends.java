@@ -0,0 +1,88 @@
+package com.bodastage.boda_bulkcmparser;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+
+/**
+ * The available XML backends.
+ *
+ * <ul>
+ * <li>stax: the StAX implementation found by XMLInputFactory.newInstance()</li>
+ * <li>jdk: the StAX implementation built into the JDK</li>
+ * <li>woodstox: Woodstox, needs com.fasterxml.woodstox:woodstox-core on the classpath</li>
+ * <li>aalto: Aalto, needs com.fasterxml:aalto-xml on the classpath</li>
+ * <li>aalto-async: Aalto's non-blocking parser fed from a byte buffer</li>
+ * <li>scanner: the byte level {@link BulkCmScanner}</li>
+ * </ul>
+ *
+ * The backends report the same elements, but text containing references may
+ * be split into different chunks.
+ */
+public final class XmlBackends {
+
+    public static final String STAX = "stax";
+    public static final String JDK = "jdk";
+    public static final String WOODSTOX = "woodstox";
+    public static final String AALTO = "aalto";
+
+    private static final String JDK_FACTORY = "com.sun.xml.internal.stream.XMLInputFactoryImpl";
+    private static final String WOODSTOX_FACTORY = "com.ctc.wstx.stax.WstxInputFactory";
+    private static final String AALTO_FACTORY = "com.fasterxml.aalto.stax.InputFactoryImpl";
+
+    private XmlBackends() {
+    }
+
+    public static List<String> names() {
+        return Arrays.asList(STAX, JDK, WOODSTOX, AALTO, AaltoAsyncBackend.NAME, BulkCmScanner.NAME);
+    }
+
+    /**
+     * Creates a new instance of the named backend.
+     *
+     * @throws IllegalArgumentException if the name is unknown or the backend's
+     *         library is not on the classpath
+     */
+    public static XmlBackend create(String name) {
+        try {
+            switch (name) {
+                case STAX:
+                    return new StaxBackend(STAX, XMLInputFactory.newInstance(), true);
+                case JDK:
+                    return new StaxBackend(JDK, jdkFactory(), true);
+                case WOODSTOX:
+                    return new StaxBackend(WOODSTOX, factory(WOODSTOX_FACTORY), false);
+                case AALTO:
+                    return new StaxBackend(AALTO, factory(AALTO_FACTORY), false);
+                case AaltoAsyncBackend.NAME:
+                    return new AaltoAsyncBackend();
+                case BulkCmScanner.NAME:
+                    return new BulkCmScanner();
+                default:
+                    throw new IllegalArgumentException("Unknown XML backend " + name + ", expected one of " + names());
+            }
+        } catch (InvocationTargetException e) {
+            throw new IllegalArgumentException("XML backend " + name + " is not available: " + e.getCause());
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new IllegalArgumentException("XML backend " + name + " is not available: " + e);
+        }
+    }
+
+    /**
+     * The JDK's own factory, from XMLInputFactory.newDefaultFactory() where
+     * available (Java 9+).
+     */
+    private static XMLInputFactory jdkFactory() throws ReflectiveOperationException {
+        try {
+            return (XMLInputFactory) XMLInputFactory.class.getMethod("newDefaultFactory").invoke(null);
+        } catch (NoSuchMethodException e) {
+            return factory(JDK_FACTORY);
+        }
+    }
+
+    private static XMLInputFactory factory(String className) throws ReflectiveOperationException {
+        return (XMLInputFactory) Class.forName(className).getDeclaredConstructor().newInstance();
+    }
+}
@@ -2,9 +2,26 @@ package com.bodastage.boda_bulkcmparser;
 
 import com.bodastage.boda_bulkcmparser.bulkcmxml.BulkCmConfigDataFile;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
 
 /**
  * Unit test for boda-bulkcmparser.
@@ -111,4 +128,739 @@ public class BodaBulkCMParserTest
             assertTrue(false);
         }
     }
+
+    /**
+     * The single-pass mode should produce the same csv files as the default two passes.
+     */
+    public void testSinglePass() throws Exception {
+        File expected = parseInto("twopass");
+        File actual = parseInto("singlepass", "-S");
+
+        assertSameOutput(expected, actual);
+    }
+
+    /**
+     * Replaying the recorded events in the second pass should produce the same csv files.
+     */
+    public void testEventLog() throws Exception {
+        File expected = parseInto("noeventlog");
+        File actual = parseInto("eventlog", "-eventlog=6");
+
+        assertSameOutput(expected, actual);
+    }
+
+    /**
+     * A surrogate pair split across two chunks of characters should be
+     * replayed unchanged.
+     */
+    public void testEventLogSplitSurrogatePair() throws Exception {
+        final String text = "Kampala \ud83d\udce1 \u00e9t\u00e9";
+        final StringBuilder replayed = new StringBuilder();
+        char[] chars = text.toCharArray();
+        int split = text.indexOf('\ud83d') + 1;
+
+        try (EventLog log = new EventLog(new File(System.getProperty("java.io.tmpdir")), EventLog.NO_COMPRESSION)) {
+            log.writeStartElement("xn", "userLabel", new AttributeList());
+            log.writeCharacters(chars, 0, split);
+            log.writeCharacters(chars, split, chars.length - split);
+            log.writeEndElement("xn", "userLabel");
+            log.finish();
+
+            log.replay(new AbstractFileParser() {
+                @Override
+                protected void onStartElement(String prefix, String localName, ElementAttributes attributes) {
+                }
+
+                @Override
+                protected void onCharacters(char[] text, int start, int length) {
+                    replayed.append(text, start, length);
+                }
+
+                @Override
+                protected void onEndElement(String prefix, String localName) {
+                }
+            });
+        }
+
+        assertEquals(text, replayed.toString());
+    }
+
+    /**
+     * The byte level scanner should produce the same csv files as StAX.
+     */
+    public void testByteScanner() throws Exception {
+        File expected = parseInto("stax");
+        File actual = parseInto("scanner", "-backend=scanner");
+
+        assertSameOutput(expected, actual);
+    }
+
+    /**
+     * Every XML backend should produce the same csv files as the JDK's StAX
+     * parser. The default backend is not used as the reference because it
+     * picks up Woodstox or Aalto from the test classpath.
+     */
+    public void testXmlBackends() throws Exception {
+        for (String backend : XmlBackends.names()) {
+            File expected = parseInto("jdk-" + backend, "-backend=" + XmlBackends.JDK);
+            File actual = parseInto("backend-" + backend, "-backend=" + backend);
+
+            assertSameOutput(expected, actual);
+        }
+    }
+
+    /**
+     * A file in an encoding other than UTF-8 should be declined by the scanner
+     * and parsed with StAX, which decodes it by its XML declaration.
+     */
+    public void testNonUtf8Fallback() throws Exception {
+        File xml = new File(System.getProperty("java.io.tmpdir"), "bodabulkcm-latin1.xml");
+        Files.write(xml.toPath(), ("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n"
+                + "<bulkCmConfigDataFile xmlns:xn=\"genericNrm.xsd\"><configData>\n"
+                + "<xn:MeContext id=\"1\"><xn:attributes><xn:userLabel>Kampala \u00e9t\u00e9</xn:userLabel></xn:attributes></xn:MeContext>\n"
+                + "</configData></bulkCmConfigDataFile>\n").getBytes(StandardCharsets.ISO_8859_1));
+
+        File dir = Files.createTempDirectory("bodabulkcm-scanner").toFile();
+
+        try {
+            try (BodaBulkCMParser parser = new BodaBulkCMParser(new BulkOutputWriter("_", dir.getAbsolutePath()));
+                    InputStream in = CompressedInput.open(xml.getPath())) {
+                assertFalse(new BulkCmScanner().parse(in, parser));
+            }
+
+            File expected = parseInto(xml, "latin1-stax", "-backend=stax");
+            File actual = parseInto(xml, "latin1-scanner", "-backend=scanner");
+            String label = new String("Kampala \u00e9t\u00e9".getBytes(Charset.defaultCharset()), Charset.defaultCharset());
+
+            assertTrue(new String(Files.readAllBytes(new File(actual, "MeContext.csv").toPath()), Charset.defaultCharset()).contains("," + label));
+            assertSameOutput(expected, actual);
+        } finally {
+            IOUtils.deleteRecursively(dir);
+            xml.delete();
+        }
+    }
+
+    /**
+     * Writing the rows on output threads should produce the same csv files,
+     * and closing the output while rows are written should not lose track of them.
+     */
+    public void testAsyncOutput() throws Exception {
+        File expected = parseInto("syncoutput");
+        File actual = parseInto("asyncoutput", "-async=3", "-queue=2", "-maxopen=2");
+
+        assertSameOutput(expected, actual);
+
+        File dir = Files.createTempDirectory("bodabulkcm-closing").toFile();
+
+        try (BulkOutputWriter writer = new BulkOutputWriter("_", dir.getAbsolutePath())) {
+            BulkOutputWriter.Handle handle = writer.register("MO", "a");
+            AsyncRowWriter rows = new AsyncRowWriter(2, 1);
+            Thread thread = new Thread(() -> {
+                try {
+                    for (;;) {
+                        rows.submit(handle, new CharSequence[] {"x"}, 0);
+                    }
+                } catch (IllegalStateException e) {
+                    //Closed
+                }
+            });
+
+            thread.start();
+            rows.close();
+            thread.join();
+            rows.flush();																				//Returns once every row queued before close() is written
+        } finally {
+            IOUtils.deleteRecursively(dir);
+        }
+    }
+
+    /**
+     * Reading the input ahead in small chunks should produce the same csv
+     * files. A read error should reach the parser and closing the input
+     * early should close the source.
+     */
+    public void testReadAhead() throws Exception {
+        File expected = parseInto("directread");
+        File actual = parseInto("readahead", "-readahead=1", "-readchunk=1024");
+
+        assertSameOutput(expected, actual);
+
+        ReadAhead readAhead = new ReadAhead(2, 1024);
+        boolean[] closed = new boolean[1];
+        byte[] buffer = new byte[1000];
+        int length = 0;
+
+        try (InputStream in = readAhead.open(new InputStream() {
+            private int count = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (count++ >= 5000) {
+                    throw new IOException("Disk gone");
+                }
+                return 'x';
+            }
+        })) {
+            for (int n; (n = in.read(buffer)) >= 0; ) {
+                length += n;
+            }
+            fail("The read error was not passed on");
+        } catch (IOException e) {
+            assertEquals("Disk gone", e.getMessage());
+        }
+        assertEquals(5000, length);
+
+        InputStream in = readAhead.open(new InputStream() {
+            @Override
+            public int read() {
+                return 'y';
+            }
+
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        });
+        assertEquals('y', in.read());
+        in.close();
+
+        assertTrue(closed[0]);
+        assertTrue(readAhead.getBytes() >= 5000);
+    }
+
+    /**
+     * Parsing the files of a directory on several threads should produce the
+     * same csv files as parsing them one after the other.
+     */
+    public void testParallelDirectory() throws Exception {
+        File input = new File(System.getProperty("java.io.tmpdir"), "bodabulkcm-input");
+        input.mkdirs();
+
+        try {
+            for (int i = 0; i < 3; i++) {
+                Files.copy(new File(sampleBulkCMFile).toPath(), new File(input, "bulkcm" + i + ".xml").toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            File expected = parseInto(input, "sequential");
+            File actual = parseInto(input, "parallel", "-threads=3", "-S");
+
+            assertSameOutput(expected, actual);
+        } finally {
+            for (File f : input.listFiles()) {
+                f.delete();
+            }
+            input.delete();
+        }
+    }
+
+    /**
+     * Parsing the parts of a file split at its MeContext elements on several
+     * threads should produce the same csv files as parsing the file whole.
+     */
+    public void testSplitFile() throws Exception {
+        File expected = parseInto("whole");
+        File actual = parseInto("split", "-threads=2", "-split=1");
+
+        assertSameOutput(expected, actual);
+    }
+
+    /**
+     * Worker processes sharing a work directory should parse each file once,
+     * and merging their shards should produce the same csv files as parsing
+     * the files in one process.
+     */
+    public void testShardedWorkers() throws Exception {
+        File input = new File(System.getProperty("java.io.tmpdir"), "bodabulkcm-shardinput");
+        File work = new File(System.getProperty("java.io.tmpdir"), "bodabulkcm-shardwork");
+        input.mkdirs();
+        IOUtils.deleteRecursively(work);
+
+        try {
+            for (int i = 0; i < 3; i++) {
+                Files.copy(new File(sampleBulkCMFile).toPath(), new File(input, "bulkcm" + i + ".xml").toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            File expected = parseInto(input, "unsharded");
+
+            Process[] workers = new Process[2];
+            for (int i = 0; i < workers.length; i++) {
+                File output = new File(System.getProperty("java.io.tmpdir"), "bodabulkcm-worker" + i);
+                output.mkdirs();
+
+                workers[i] = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                        "-cp", System.getProperty("java.class.path"), Main.class.getName(),
+                        input.getAbsolutePath(), output.getAbsolutePath(), "-shard=" + work.getAbsolutePath())
+                        .inheritIO().start();
+            }
+            for (Process worker : workers) {
+                assertEquals(0, worker.waitFor());
+            }
+
+            File actual = parseInto(input, "sharded", "-merge=" + work.getAbsolutePath());
+
+            assertSameOutput(expected, actual);
+        } finally {
+            IOUtils.deleteRecursively(input);
+            IOUtils.deleteRecursively(work);
+            for (int i = 0; i < 2; i++) {
+                IOUtils.deleteRecursively(new File(System.getProperty("java.io.tmpdir"), "bodabulkcm-worker" + i));
+            }
+        }
+    }
+
+    /**
+     * A gzip compressed file made of several members should be decompressed
+     * while it is parsed and produce the same csv files as the plain file.
+     */
+    public void testCompressedInput() throws Exception {
+        File sample = new File(sampleBulkCMFile);
+        File gzipped = new File(new File(System.getProperty("java.io.tmpdir"), "bodabulkcm-gzip"), sample.getName());	//Same name, so the FileName columns match
+        byte[] xml = Files.readAllBytes(sample.toPath());
+        gzipped.getParentFile().mkdirs();
+
+        try {
+            try (OutputStream out = new FileOutputStream(gzipped)) {
+                for (int start = 0, end = xml.length / 2; start < xml.length; start = end, end = xml.length) {
+                    GZIPOutputStream member = new GZIPOutputStream(out);
+                    member.write(xml, start, end - start);
+                    member.finish();
+                }
+            }
+            assertEquals(CompressedInput.GZIP, CompressedInput.detect(gzipped.getPath()));
+
+            File expected = parseInto("plain");
+            File actual = parseInto(gzipped, "gunzipped");
+
+            assertSameOutput(expected, actual);
+        } finally {
+            IOUtils.deleteRecursively(gzipped.getParentFile());
+        }
+    }
+
+    /**
+     * A bzip2 compressed file should produce the same csv files as the plain
+     * file.
+     */
+    public void testBzip2Input() throws Exception {
+        assertCompressedInput(CompressedInput.BZIP2, CompressorStreamFactory.BZIP2);
+    }
+
+    /**
+     * An xz compressed file should produce the same csv files as the plain
+     * file.
+     */
+    public void testXzInput() throws Exception {
+        assertCompressedInput(CompressedInput.XZ, CompressorStreamFactory.XZ);
+    }
+
+    private void assertCompressedInput(String format, String compressor) throws Exception {
+        File sample = new File(sampleBulkCMFile);
+        File compressed = new File(new File(System.getProperty("java.io.tmpdir"), "bodabulkcm-" + format), sample.getName());	//Same name, so the FileName columns match
+        compressed.getParentFile().mkdirs();
+
+        try {
+            try (OutputStream out = new CompressorStreamFactory().createCompressorOutputStream(compressor, new FileOutputStream(compressed))) {
+                Files.copy(sample.toPath(), out);
+            }
+            assertEquals(format, CompressedInput.detect(compressed.getPath()));
+
+            File expected = parseInto("plain-" + format);
+            File actual = parseInto(compressed, "decompressed-" + format);
+
+            assertSameOutput(expected, actual);
+        } finally {
+            IOUtils.deleteRecursively(compressed.getParentFile());
+        }
+    }
+
+    /**
+     * The members of zip and tar.gz files found in the subdirectories of the
+     * input should be parsed like plain files with the members' paths.
+     */
+    public void testArchiveInput() throws Exception {
+        File sample = new File(sampleBulkCMFile);
+        byte[] xml = Files.readAllBytes(sample.toPath());
+        File plain = new File(System.getProperty("java.io.tmpdir"), "bodabulkcm-plaininput");
+        File archives = new File(System.getProperty("java.io.tmpdir"), "bodabulkcm-archiveinput");
+
+        try {
+            for (String region : new String[] {"region1", "region2"}) {
+                new File(plain, region).mkdirs();
+                Files.write(new File(plain, region + "/" + sample.getName()).toPath(), xml);
+                new File(archives, region).mkdirs();
+            }
+
+            try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(new File(archives, "region1/export.zip")))) {
+                zip.putNextEntry(new ZipEntry(sample.getName()));
+                zip.write(xml);
+                zip.putNextEntry(new ZipEntry("notes.txt"));
+                zip.write("not bulk cm".getBytes(StandardCharsets.UTF_8));
+            }
+
+            try (OutputStream tar = new GZIPOutputStream(new FileOutputStream(new File(archives, "region2/export.tar.gz")))) {
+                writeTarEntry(tar, sample.getName(), xml);
+                tar.write(new byte[1024]);
+            }
+            Files.write(new File(archives, "region2/readme.txt").toPath(), "not bulk cm".getBytes(StandardCharsets.UTF_8));
+
+            File expected = parseInto(plain, "plainmembers");
+            File actual = parseInto(archives, "archivemembers", "-exclude=*.txt");
+
+            assertSameOutput(expected, actual);
+        } finally {
+            IOUtils.deleteRecursively(plain);
+            IOUtils.deleteRecursively(archives);
+        }
+    }
+
+    /**
+     * Writes a ustar header and the padded data of a file.
+     */
+    private static void writeTarEntry(OutputStream tar, String name, byte[] data) throws IOException {
+        byte[] header = new byte[512];
+        byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        System.arraycopy("0000644\0".getBytes(StandardCharsets.US_ASCII), 0, header, 100, 8);
+        System.arraycopy(String.format("%011o\0", data.length).getBytes(StandardCharsets.US_ASCII), 0, header, 124, 12);
+        System.arraycopy("        ".getBytes(StandardCharsets.US_ASCII), 0, header, 148, 8);
+        header[156] = '0';
+        System.arraycopy(("ustar\0" + "00").getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+        int checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        System.arraycopy(String.format("%06o\0 ", checksum).getBytes(StandardCharsets.US_ASCII), 0, header, 148, 8);
+
+        tar.write(header);
+        tar.write(data);
+        tar.write(new byte[(512 - data.length % 512) % 512]);
+    }
+
+    /**
+     * gzip and zstd compressed csv files made of small blocks, compressed on
+     * several threads and reopened after eviction, should decompress to the
+     * same csv files.
+     */
+    public void testCompressedOutput() throws Exception {
+        for (String format : OutputCompressor.formats()) {
+            String extension = OutputCompressor.ZSTD.equals(format) ? ".zst" : ".gz";
+            File expected = parseInto("uncompressed-" + format);
+            File compressed = parseInto("compressed-" + format, "-compress=" + format, "-compresslevel=1", "-compressblock=64", "-compressthreads=2", "-maxopen=2");
+            File actual = new File(System.getProperty("java.io.tmpdir"), "bodabulkcm-decompressed-" + format);
+            actual.mkdirs();
+
+            try {
+                assertTrue(format, compressed.list().length > 0);
+
+                for (File f : compressed.listFiles()) {
+                    assertTrue(f.getName(), f.getName().endsWith(".csv" + extension));
+                    assertEquals(format, CompressedInput.detect(f.getPath()));
+
+                    try (InputStream in = CompressedInput.open(f.getPath())) {
+                        Files.copy(in, new File(actual, f.getName().substring(0, f.getName().length() - extension.length())).toPath());
+                    }
+                }
+            } finally {
+                IOUtils.deleteRecursively(compressed);
+            }
+
+            assertSameOutput(expected, actual);
+        }
+    }
+
+    /**
+     * A run with a saved schema catalog skips the parameter extraction stage
+     * and should produce the same csv files.
+     */
+    public void testSchemaCatalog() throws Exception {
+        File catalog = new File(System.getProperty("java.io.tmpdir"), "bodabulkcm-schema.catalog");
+        catalog.delete();
+
+        try {
+            File expected = parseInto("catalogsave", "-catalog=" + catalog.getAbsolutePath());
+            assertTrue(catalog.isFile());
+
+            File actual = parseInto("catalogload", "-catalog=" + catalog.getAbsolutePath());
+
+            assertSameOutput(expected, actual);
+        } finally {
+            catalog.delete();
+        }
+    }
+
+    /**
+     * Text split by entity references is reported in chunks by the XML
+     * parsers and should be written as a whole.
+     */
+    public void testTextWithReferences() throws Exception {
+        File xml = new File(System.getProperty("java.io.tmpdir"), "bodabulkcm-references.xml");
+        Files.write(xml.toPath(), ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<bulkCmConfigDataFile xmlns:xn=\"genericNrm.xsd\"><configData>\n"
+                + "<xn:MeContext id=\"1\"><xn:attributes><xn:userLabel>Kampala &amp; &#67;o</xn:userLabel></xn:attributes></xn:MeContext>\n"
+                + "</configData></bulkCmConfigDataFile>\n").getBytes("UTF-8"));
+
+        String saved = sampleBulkCMFile;
+        sampleBulkCMFile = xml.getAbsolutePath();
+
+        try {
+            for (String backend : new String[] {"stax", "scanner"}) {
+                File dir = parseInto("references", "-backend=" + backend);
+                String csv = new String(Files.readAllBytes(new File(dir, "MeContext.csv").toPath()), "UTF-8");
+
+                assertTrue(backend + ": " + csv, csv.contains(",Kampala & Co"));
+
+                for (File f : dir.listFiles()) {
+                    f.delete();
+                }
+                dir.delete();
+            }
+        } finally {
+            sampleBulkCMFile = saved;
+            xml.delete();
+        }
+    }
+
+    /**
+     * Rows written through a handle, through a handle registered again with
+     * the header in other case and through writeLine should all go to the same file.
+     */
+    public void testOutputHandles() throws Exception {
+        File dir = Files.createTempDirectory("bodabulkcm-handles").toFile();
+
+        try (BulkOutputWriter writer = new BulkOutputWriter("_", dir.getAbsolutePath())) {
+            BulkOutputWriter.Handle handle = writer.register("MO", "FileName,a,b");
+
+            assertSame(handle, writer.register("MO", "FILENAME,A,B"));
+
+            handle.write(new String[] {"f", "1", "2"});
+            handle.write(new StringBuilder("f,3,4"));
+            writer.writeLine("MO", "FileName,a,b", "f,5,6");
+        }
+
+        assertEquals("FileName,a,b\nf,1,2\nf,3,4\nf,5,6\n",
+                new String(Files.readAllBytes(new File(dir, "MO.csv").toPath()), "UTF-8").replace(System.lineSeparator(), "\n"));
+
+        new File(dir, "MO.csv").delete();
+        dir.delete();
+    }
+
+    /**
+     * With a pool of one open file, files evicted by writing to the other
+     * file should be reopened in append mode and keep all their rows.
+     */
+    public void testOutputFilePool() throws Exception {
+        File dir = Files.createTempDirectory("bodabulkcm-pool").toFile();
+        OutputFilePool pool;
+
+        try (BulkOutputWriter writer = new BulkOutputWriter("_", dir.getAbsolutePath(), CSVChannelWriter.MIN_BUFFER_SIZE, 1)) {
+            pool = writer.getFilePool();
+
+            BulkOutputWriter.Handle a = writer.register("A", "h");
+            BulkOutputWriter.Handle b = writer.register("B", "h");
+
+            for (int i = 0; i < 3; i++) {
+                a.write("a" + i);
+                a.write("a" + i);
+                b.write("b" + i);
+            }
+
+            assertEquals(1, pool.getOpenFiles());
+        }
+
+        assertEquals(0, pool.getOpenFiles());
+        assertEquals(8, pool.getMisses());
+        assertEquals(7, pool.getEvictions());
+        assertEquals(3, pool.getHits());
+
+        String nl = System.lineSeparator();
+        assertEquals("h" + nl + "a0" + nl + "a0" + nl + "a1" + nl + "a1" + nl + "a2" + nl + "a2" + nl,
+                new String(Files.readAllBytes(new File(dir, "A.csv").toPath()), "UTF-8"));
+        assertEquals("h" + nl + "b0" + nl + "b1" + nl + "b2" + nl,
+                new String(Files.readAllBytes(new File(dir, "B.csv").toPath()), "UTF-8"));
+
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Rows written from several threads to a shared file should keep each
+     * thread's order, and files of their own should get all their rows.
+     */
+    public void testConcurrentOutput() throws Exception {
+        File dir = Files.createTempDirectory("bodabulkcm-concurrent").toFile();
+        Thread[] threads = new Thread[4];
+        int rows = 2000;
+
+        try (BulkOutputWriter writer = new BulkOutputWriter("_", dir.getAbsolutePath(), CSVChannelWriter.MIN_BUFFER_SIZE, 3)) {
+            for (int t = 0; t < threads.length; t++) {
+                String thread = "t" + t;
+
+                threads[t] = new Thread(() -> {
+                    for (int i = 0; i < rows; i++) {
+                        writer.writeLine("Shared", "thread,row", thread + "," + i);
+                        writer.writeLine("Own" + thread, "row", String.valueOf(i));
+                    }
+                });
+                threads[t].start();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        int[] next = new int[threads.length];
+        List<String> shared = Files.readAllLines(new File(dir, "Shared.csv").toPath());
+
+        assertEquals(threads.length * rows + 1, shared.size());
+        for (String line : shared.subList(1, shared.size())) {
+            String[] values = line.split(",");
+            int t = Integer.parseInt(values[0].substring(1));
+
+            assertEquals(line, next[t]++, Integer.parseInt(values[1]));
+        }
+
+        for (int t = 0; t < threads.length; t++) {
+            List<String> own = Files.readAllLines(new File(dir, "Ownt" + t + ".csv").toPath());
+
+            assertEquals(rows + 1, own.size());
+            assertEquals(String.valueOf(rows - 1), own.get(rows));
+        }
+
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * The channel writer should escape and encode values like
+     * CSVUtils.toCSVFormat and String.getBytes, surrogate pairs and lone
+     * surrogates included, whatever the buffer size.
+     */
+    public void testCSVChannelWriter() throws Exception {
+        String[] values = {"plain", "a,b", "say \"hi\"", "", "\u00e9t\u00e9,\u4e2d", "\ud83d\ude00\"", "lone\ud800", "x,\"y\",z,\u00ff\u00ff\u00ff\u00ff\u00ff\u00ff"};
+        File csv = File.createTempFile("bodabulkcm-channel", ".csv");
+
+        for (int bufferSize : new int[] {CSVChannelWriter.MIN_BUFFER_SIZE, 17, CSVChannelWriter.DEFAULT_BUFFER_SIZE}) {
+            StringBuilder expected = new StringBuilder();
+
+            try (CSVChannelWriter writer = new CSVChannelWriter(
+                    FileChannel.open(csv.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), bufferSize, StandardCharsets.UTF_8)) {
+                for (String value : values) {
+                    writer.write("f,1");
+                    writer.write((byte) ',');
+                    writer.writeCSV(new StringBuilder(value));
+                    writer.newLine();
+
+                    expected.append("f,1,").append(CSVUtils.toCSVFormat(value)).append(System.lineSeparator());
+                }
+            }
+
+            assertTrue("buffer " + bufferSize, Arrays.equals(expected.toString().getBytes(StandardCharsets.UTF_8), Files.readAllBytes(csv.toPath())));
+        }
+
+        csv.delete();
+    }
+
+    /**
+     * Reading a file through small mapped windows should give its bytes, and
+     * decoding it should give its text, also where a window boundary splits
+     * a character.
+     */
+    public void testMappedInput() throws Exception {
+        String text = "<a>\u00e9t\u00e9 \u4e2d\u6587 \ud83d\ude00\ud83d\ude00 plain ascii \u00ff\u00ff\u00ff\u00ff</a>";
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[utf8.length + 3];
+        File file = File.createTempFile("bodabulkcm-mapped", ".xml");
+
+        bytes[0] = (byte) 0xEF;																			//Byte order mark
+        bytes[1] = (byte) 0xBB;
+        bytes[2] = (byte) 0xBF;
+        System.arraycopy(utf8, 0, bytes, 3, utf8.length);
+        Files.write(file.toPath(), bytes);
+
+        try {
+            for (int windowSize = 16; windowSize <= 19; windowSize++) {
+                for (int bufferSize : new int[] {1, 2, 5, 1024}) {
+                    StringBuilder decoded = new StringBuilder();
+                    char[] buffer = new char[bufferSize];
+
+                    try (Reader reader = new MappedInput(FileChannel.open(file.toPath(), StandardOpenOption.READ), 0, bytes.length, windowSize).reader()) {
+                        for (int n = reader.read(buffer); n >= 0; n = reader.read(buffer)) {
+                            decoded.append(buffer, 0, n);
+                        }
+                    }
+
+                    assertEquals("window " + windowSize + ", buffer " + bufferSize, text, decoded.toString());
+                }
+
+                try (MappedInput in = new MappedInput(FileChannel.open(file.toPath(), StandardOpenOption.READ), 2, bytes.length, windowSize)) {
+                    byte[] read = new byte[bytes.length - 2];
+                    int length = 0;
+
+                    in.mark(0);
+                    assertEquals(bytes[2] & 0xff, in.read());
+                    assertEquals(20, in.skip(20));
+                    in.reset();
+
+                    for (int n; length < read.length && (n = in.read(read, length, read.length - length)) >= 0; ) {
+                        length += n;
+                    }
+
+                    assertEquals(read.length, length);
+                    assertEquals(-1, in.read());
+                    assertTrue("window " + windowSize, Arrays.equals(Arrays.copyOfRange(bytes, 2, bytes.length), read));
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Parses the sample file into a new directory under the temporary directory.
+     */
+    private File parseInto(String dirName, String... options) throws IOException {
+        return parseInto(new File(sampleBulkCMFile), dirName, options);
+    }
+
+    private File parseInto(File input, String dirName, String... options) throws IOException {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "bodabulkcm-" + dirName);
+        dir.mkdirs();
+
+        String[] args = new String[options.length + 3];
+        args[0] = input.getAbsolutePath();
+        args[1] = dir.getAbsolutePath();
+        args[2] = "-D";
+        System.arraycopy(options, 0, args, 3, options.length);
+        Main.main(args);
+
+        return dir;
+    }
+
+    private void assertSameOutput(File expected, File actual) throws IOException {
+        try {
+            String[] expectedNames = expected.list();
+            assertEquals(expectedNames.length, actual.list().length);
+
+            for (String name : expectedNames) {
+                File f = new File(actual, name);
+                assertTrue(name, f.exists());
+                assertEquals(name, new String(Files.readAllBytes(new File(expected, name).toPath()), "UTF-8"),
+                        new String(Files.readAllBytes(f.toPath()), "UTF-8"));
+            }
+        } finally {
+            for (File dir : new File[] {expected, actual}) {
+                for (File f : dir.listFiles()) {
+                    f.delete();
+                }
+                dir.delete();
+            }
+        }
+    }
 }